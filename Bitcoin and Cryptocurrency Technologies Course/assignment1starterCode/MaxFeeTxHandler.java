@@ -1,5 +1,7 @@
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 public class MaxFeeTxHandler extends TxHandler {
 
@@ -9,11 +11,16 @@ public class MaxFeeTxHandler extends TxHandler {
 
 	@Override
 	protected Transaction[] getSortedTransactions(Transaction[] txs) {
+		// fees are looked up once rather than on every comparison
+		Map<Transaction, Double> fees = new IdentityHashMap<Transaction, Double>();
+		for (Transaction tx : txs) {
+			fees.put(tx, fee(tx));
+		}
 		Arrays.sort(txs, new Comparator<Transaction>() {
 			@Override
 			public int compare(Transaction tx1, Transaction tx2) {
-				double fee1 = fee(tx1);
-				double fee2 = fee(tx2);
+				double fee1 = fees.get(tx1);
+				double fee2 = fees.get(tx2);
 
 				if (fee1 < fee2) {
 					return 1;
@@ -1,5 +1,5 @@
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,6 +18,26 @@ public class CompliantNode implements Node {
 
 	private Set<Transaction> transactions = null; // transactions to broadcast
 
+	// in compact mode the transactions to broadcast are a bitset over the index
+	private TransactionIndex transaction_index = null;
+	private long[] transaction_bits;
+
+	// votes per transaction slot, or per index in compact mode, kept at zero between rounds
+	private int[] votes = new int[0];
+	// (slot, sender) pairs counted in the current round, an open-addressing set kept empty (-1)
+	private long[] counted = new long[0];
+	// slots of the transactions received, with the slots voted for in the current round
+	private Map<Transaction, Integer> transaction_slots = new HashMap<>();
+	private Transaction[] slot_transactions = new Transaction[0];
+	private int[] touched = new int[0];
+
+	private RoundListener round_listener = null;
+
+	/** Observes the state of a node at the end of each round */
+	public interface RoundListener {
+		void onRound(int round, double followees_count, double relay_threshold, int transactions_count);
+	}
+
 	public CompliantNode(double p_graph, double p_malicious, double p_txDistribution, int numRounds) {
 		this.p_graph = p_graph;
 		this.p_malicious = p_malicious;
@@ -31,43 +51,136 @@ public class CompliantNode implements Node {
 		calculate_followees_count(followees);
 	}
 
+	public void setFollowees(int[] followees, int numNodes) {
+		this.followees_count = followees.length;
+	}
+
 	public void setPendingTransaction(Set<Transaction> pendingTransactions) {
 		this.transactions = pendingTransactions;
+		this.transaction_index = null;
 	}
 
 	public Set<Transaction> sendToFollowers() {
+		if (transaction_index != null)
+			return transaction_index.toSet(transaction_bits);
+
 		return transactions;
 	}
 
+	public long[] sendBitsToFollowers(TransactionIndex index) {
+		if (transaction_index != index) {
+			this.transaction_bits = index.toBits(sendToFollowers());
+			this.transaction_index = index;
+		}
+		return transaction_bits;
+	}
+
+	// candidates may come in any order, a repeated (tx, sender) pair is only counted once
 	public void receiveFromFollowees(Set<Candidate> candidates) {
-		Map<Transaction, Set<Integer>> transactionCandidates = new HashMap<>();
+		ensure_counted_capacity(candidates.size());
+		int touched_count = 0;
 		for (Candidate candidate : candidates) {
-			if (!transactionCandidates.containsKey(candidate.tx))
-				transactionCandidates.put(candidate.tx, new HashSet<>());
+			int slot = transaction_slot(candidate.tx);
+			if (!count_vote(slot, candidate.sender))
+				continue;
+			if (votes[slot]++ == 0)
+				touched[touched_count++] = slot;
+		}
+
+		calculate_relay_threshold();
 
-			transactionCandidates.get(candidate.tx).add(candidate.sender);
+		this.transactions.clear();
+		for (int k = 0; k < touched_count; k++) {
+			int slot = touched[k];
+			// the many senders pushed this tx the stronger it gets
+			if (transaction_ratio(votes[slot]) > relay_threshold)
+				this.transactions.add(slot_transactions[slot]);
+			votes[slot] = 0;
+		}
+		Arrays.fill(counted, -1L);
+		this.transaction_index = null;
+
+		if (round_listener != null)
+			round_listener.onRound(round, followees_count, relay_threshold, transactions.size());
+	}
+
+	public void receiveBitsFromFollowees(TransactionIndex index, int[] followees, long[][] proposals) {
+		// each followee sends a transaction at most once, so its bit is one vote
+		ensure_votes_capacity(index.size());
+		for (int i : followees) {
+			long[] bits = proposals[i];
+			for (int w = 0; w < bits.length; w++) {
+				for (long word = bits[w]; word != 0; word &= word - 1)
+					votes[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+			}
 		}
 
 		calculate_relay_threshold();
-		System.out
-				.println("Round: " + round + " Followees:" + followees_count + " Relay threshold: " + relay_threshold);
 
-		calculate_transactions(transactionCandidates);
+		// the simulation copies what was sent, so the bitset can be refilled in place
+		if (transaction_index != index || transaction_bits.length != index.words())
+			this.transaction_bits = new long[index.words()];
+		Arrays.fill(transaction_bits, 0);
+		for (int t = 0; t < index.size(); t++) {
+			if (votes[t] > 0 && transaction_ratio(votes[t]) > relay_threshold)
+				transaction_bits[t >>> 6] |= 1L << t;
+			votes[t] = 0;
+		}
+		this.transaction_index = index;
+
+		if (round_listener != null)
+			round_listener.onRound(round, followees_count, relay_threshold, TransactionIndex.count(transaction_bits));
 	}
 
-	private void calculate_transactions(Map<Transaction, Set<Integer>> transactionCandidates) {
-		this.transactions.clear();
+	/** Calls {@code listener} at the end of every round, or nobody if it is null */
+	public void setRoundListener(RoundListener listener) {
+		this.round_listener = listener;
+	}
 
-		for (Transaction tx : transactionCandidates.keySet()) {
-			Set<Integer> senders = transactionCandidates.get(tx);
+	// numbers transactions in the order they are first received, the slot arrays grow with them
+	private int transaction_slot(Transaction tx) {
+		Integer slot = transaction_slots.get(tx);
+		if (slot != null)
+			return slot;
+
+		int new_slot = transaction_slots.size();
+		transaction_slots.put(tx, new_slot);
+		if (new_slot == slot_transactions.length) {
+			slot_transactions = Arrays.copyOf(slot_transactions, Math.max(16, 2 * new_slot));
+			touched = Arrays.copyOf(touched, slot_transactions.length);
+		}
+		slot_transactions[new_slot] = tx;
+		ensure_votes_capacity(new_slot + 1);
+		return new_slot;
+	}
 
-			// the many senders pushed this tx the stronger it gets
-			if (transaction_ratio(senders.size()) > relay_threshold) {
-				this.transactions.add(tx);
+	// adds (slot, sender) to the pairs counted this round, false if it is already there
+	private boolean count_vote(int slot, int sender) {
+		long pair = (long) slot << 32 | (sender & 0xFFFFFFFFL);
+		int mask = counted.length - 1;
+		for (int i = (int) (pair * 0x9E3779B97F4A7C15L >>> 32) & mask;; i = (i + 1) & mask) {
+			if (counted[i] == pair)
+				return false;
+			if (counted[i] == -1L) {
+				counted[i] = pair;
+				return true;
 			}
 		}
 	}
 
+	// keeps the set of counted pairs at most half full
+	private void ensure_counted_capacity(int pairs) {
+		if (counted.length < 2 * pairs) {
+			counted = new long[Integer.highestOneBit(Math.max(8, 2 * pairs - 1)) << 1];
+			Arrays.fill(counted, -1L);
+		}
+	}
+
+	private void ensure_votes_capacity(int capacity) {
+		if (votes.length < capacity)
+			votes = Arrays.copyOf(votes, Math.max(capacity, 2 * votes.length));
+	}
+
 	private void calculate_followees_count(boolean[] followees) {
 		for (boolean b : followees) {
 			if (b)
@@ -0,0 +1,109 @@
+import java.util.Random;
+
+/**
+ * Follow graph of a simulation as one bitset row per node: bit j of row i is
+ * set when node i follows node j. That is one bit per ordered pair of nodes,
+ * an eighth of a boolean[][] matrix, whatever the edge probability; an edge
+ * list would only be smaller below one edge in 64 pairs. Followers are found
+ * by reading one bit of every row.
+ */
+public class FollowGraph {
+
+	private final int numNodes;
+	private final long[][] followees;
+	private final int[] followerCounts;
+	private final long numEdges;
+
+	private FollowGraph(int numNodes, long[][] followees) {
+		this.numNodes = numNodes;
+		this.followees = followees;
+
+		followerCounts = new int[numNodes];
+		long edges = 0;
+		for (int i = 0; i < numNodes; i++) {
+			long[] row = followees[i];
+			for (int w = 0; w < row.length; w++) {
+				for (long bits = row[w]; bits != 0; bits &= bits - 1)
+					followerCounts[(w << 6) + Long.numberOfTrailingZeros(bits)]++;
+				edges += Long.bitCount(row[w]);
+			}
+		}
+		numEdges = edges;
+	}
+
+	/**
+	 * @return a graph of {@code numNodes} nodes in which each node follows each
+	 *         other node with probability {@code p_graph}
+	 */
+	public static FollowGraph random(int numNodes, double p_graph, Random random) {
+		long[][] rows = new long[numNodes][(numNodes + 63) >>> 6];
+		for (int i = 0; i < numNodes; i++) {
+			long[] row = rows[i];
+			// jumps straight to the next edge, the gaps between edges are geometric
+			for (long j = skip(p_graph, random); j < numNodes - 1; j += 1 + skip(p_graph, random)) {
+				int k = (int) (j < i ? j : j + 1); // no node follows itself
+				row[k >>> 6] |= 1L << k;
+			}
+		}
+		return new FollowGraph(numNodes, rows);
+	}
+
+	// number of failed trials before the first success
+	private static long skip(double p, Random random) {
+		if (p >= 1)
+			return 0;
+		if (p <= 0)
+			return Integer.MAX_VALUE;
+		double gap = Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+		return (long) Math.min(gap, Integer.MAX_VALUE);
+	}
+
+	public int numNodes() {
+		return numNodes;
+	}
+
+	/** @return the number of follow edges, which may exceed the range of an int */
+	public long numEdges() {
+		return numEdges;
+	}
+
+	public boolean follows(int i, int j) {
+		return (followees[i][j >>> 6] & 1L << j) != 0;
+	}
+
+	/** @return the nodes followed by node {@code i}, in increasing order */
+	public int[] getFollowees(int i) {
+		long[] row = followees[i];
+		int count = 0;
+		for (long bits : row)
+			count += Long.bitCount(bits);
+		int[] result = new int[count];
+		int n = 0;
+		for (int w = 0; w < row.length; w++) {
+			for (long bits = row[w]; bits != 0; bits &= bits - 1)
+				result[n++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+		}
+		return result;
+	}
+
+	/** @return the nodes following node {@code i}, in increasing order */
+	public int[] getFollowers(int i) {
+		int[] result = new int[followerCounts[i]];
+		int n = 0;
+		for (int k = 0; k < numNodes && n < result.length; k++) {
+			if (follows(k, i))
+				result[n++] = k;
+		}
+		return result;
+	}
+
+	public int followerCount(int i) {
+		return followerCounts[i];
+	}
+
+	/** Notifies every node of its followees */
+	public void notifyFollowees(Node[] nodes) {
+		for (int i = 0; i < numNodes; i++)
+			nodes[i].setFollowees(getFollowees(i), numNodes);
+	}
+}
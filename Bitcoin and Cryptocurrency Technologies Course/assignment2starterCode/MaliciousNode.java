@@ -1,24 +1,35 @@
 import java.util.ArrayList;
+import java.util.Random;
 import java.util.Set;
 import java.util.HashSet;
 
 public class MaliciousNode implements Node {
 
 	Set<Transaction> pendingTransactions;
+	Random random = new Random();
 	
     public MaliciousNode(double p_graph, double p_malicious, double p_txDistribution, int numRounds) {
     }
 
+    /** Draws the coin flips of {@link #sendToFollowers()} from {@code random} */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
     public void setFollowees(boolean[] followees) {
         return;
     }
 
+    public void setFollowees(int[] followees, int numNodes) {
+        return;
+    }
+
     public void setPendingTransaction(Set<Transaction> pendingTransactions) {
         this.pendingTransactions = pendingTransactions;
     }
 
     public Set<Transaction> sendToFollowers() {
-    		if (Math.random() < 0.5) {
+    		if (random.nextDouble() < 0.5) {
     			return new HashSet<Transaction>();
     		} else {
         	    	return pendingTransactions;
@@ -28,4 +39,8 @@ public class MaliciousNode implements Node {
     public void receiveFromFollowees(Set<Candidate> candidates) {
         return;
     }
+
+    public void receiveBitsFromFollowees(TransactionIndex index, int[] followees, long[][] proposals) {
+        return;
+    }
 }
@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 public interface Node {
@@ -10,6 +11,18 @@ public interface Node {
     /** {@code followees[i]} is true if and only if this node follows node {@code i} */
     void setFollowees(boolean[] followees);
 
+    /**
+     * Same as {@link #setFollowees(boolean[])} with the followees given as a sorted list of node
+     * indices out of {@code numNodes}. Nodes that do not need the full array can override this to
+     * keep their memory proportional to their number of followees.
+     */
+    default void setFollowees(int[] followees, int numNodes) {
+        boolean[] row = new boolean[numNodes];
+        for (int j : followees)
+            row[j] = true;
+        setFollowees(row);
+    }
+
     /** initialize proposal list of transactions */
     void setPendingTransaction(Set<Transaction> pendingTransactions);
 
@@ -22,4 +35,26 @@ public interface Node {
 
     /** receive candidates from other nodes. */
     void receiveFromFollowees(Set<Candidate> candidates);
+
+    /**
+     * Same as {@link #sendToFollowers()} with the proposals given as a bitset over {@code index}.
+     * Transactions missing from the index are dropped.
+     */
+    default long[] sendBitsToFollowers(TransactionIndex index) {
+        return index.toBits(sendToFollowers());
+    }
+
+    /**
+     * Same as {@link #receiveFromFollowees(Set)} with the candidates given as bitsets over
+     * {@code index}: node {@code followees[k]} proposed the transactions in
+     * {@code proposals[followees[k]]}.
+     */
+    default void receiveBitsFromFollowees(TransactionIndex index, int[] followees, long[][] proposals) {
+        Set<Candidate> candidates = new LinkedHashSet<Candidate>();
+        for (int i : followees) {
+            for (Transaction tx : index.toSet(proposals[i]))
+                candidates.add(new Candidate(tx, i));
+        }
+        receiveFromFollowees(candidates);
+    }
 }
\ No newline at end of file
@@ -18,7 +18,8 @@ public class Simulation {
 		// There are four required command line arguments: p_graph (.1, .2, .3),
 		// p_malicious (.15, .30, .45), p_txDistribution (.01, .05, .10),
 		// and numRounds (10, 20). You should try to test your CompliantNode
-		// code for all 3x3x3x2 = 54 combinations.
+		// code for all 3x3x3x2 = 54 combinations. An optional fifth argument,
+		// "compact", passes proposals between nodes as bitsets.
 
 		int numNodes = 100;
 		double p_graph = Double.parseDouble(args[0]); // parameter for random graph: prob. that an edge will exist
@@ -26,93 +27,14 @@ public class Simulation {
 		double p_txDistribution = Double.parseDouble(args[2]); // probability of assigning an initial transaction to
 																// each node
 		int numRounds = Integer.parseInt(args[3]); // number of simulation rounds your nodes will run for
-
-		// pick which nodes are malicious and which are compliant
-		Node[] nodes = new Node[numNodes];
-		for (int i = 0; i < numNodes; i++) {
-			if (Math.random() < p_malicious)
-				// When you are ready to try testing with malicious nodes, replace the
-				// instantiation below with an instantiation of a MaliciousNode
-				nodes[i] = new MaliciousNode(p_graph, p_malicious, p_txDistribution, numRounds);
-			else
-				nodes[i] = new CompliantNode(p_graph, p_malicious, p_txDistribution, numRounds);
-		}
-
-		// initialize random follow graph
-		boolean[][] followees = new boolean[numNodes][numNodes]; // followees[i][j] is true iff i follows j
-		for (int i = 0; i < numNodes; i++) {
-			for (int j = 0; j < numNodes; j++) {
-				if (i == j)
-					continue;
-				if (Math.random() < p_graph) { // p_graph is .1, .2, or .3
-					followees[i][j] = true;
-				}
-			}
-		}
-
-		// notify all nodes of their followees
-		for (int i = 0; i < numNodes; i++)
-			nodes[i].setFollowees(followees[i]);
+		boolean compact = args.length > 4 && args[4].equals("compact"); // pass proposals as bitsets
 
 		// initialize a set of 500 valid Transactions with random ids
-		int numTx = 500;
-		HashSet<Integer> validTxIds = new HashSet<Integer>();
 		Random random = new Random();
-		for (int i = 0; i < numTx; i++) {
-			int r = random.nextInt();
-			validTxIds.add(r);
-		}
+		Set<Integer> validTxIds = validTxIds(500, random);
 
-		// distribute the 500 Transactions throughout the nodes, to initialize
-		// the starting state of Transactions each node has heard. The distribution
-		// is random with probability p_txDistribution for each Transaction-Node pair.
-		for (int i = 0; i < numNodes; i++) {
-			HashSet<Transaction> pendingTransactions = new HashSet<Transaction>();
-			for (Integer txID : validTxIds) {
-				if (Math.random() < p_txDistribution) // p_txDistribution is .01, .05, or .10.
-					pendingTransactions.add(new Transaction(txID));
-			}
-			nodes[i].setPendingTransaction(pendingTransactions);
-		}
-
-		// Simulate for numRounds times
-		for (int round = 0; round < numRounds; round++) { // numRounds is either 10 or 20
-
-			// gather all the proposals into a map. The key is the index of the node
-			// receiving
-			// proposals. The value is an ArrayList containing 1x2 Integer arrays. The first
-			// element of each array is the id of the transaction being proposed and the
-			// second
-			// element is the index # of the node proposing the transaction.
-			HashMap<Integer, Set<Candidate>> allProposals = new HashMap<>();
-
-			for (int i = 0; i < numNodes; i++) {
-				Set<Transaction> proposals = nodes[i].sendToFollowers();
-				for (Transaction tx : proposals) {
-					if (!validTxIds.contains(tx.id))
-						continue; // ensure that each tx is actually valid
-
-					for (int j = 0; j < numNodes; j++) {
-						if (!followees[j][i])
-							continue; // tx only matters if j follows i
-
-						if (!allProposals.containsKey(j)) {
-							Set<Candidate> candidates = new HashSet<>();
-							allProposals.put(j, candidates);
-						}
-
-						Candidate candidate = new Candidate(tx, i);
-						allProposals.get(j).add(candidate);
-					}
-				}
-			}
-
-			// Distribute the Proposals to their intended recipients as Candidates
-			for (int i = 0; i < numNodes; i++) {
-				if (allProposals.containsKey(i))
-					nodes[i].receiveFromFollowees(allProposals.get(i));
-			}
-		}
+		Node[] nodes = simulate(numNodes, p_graph, p_malicious, p_txDistribution, numRounds, validTxIds, random, compact,
+				true);
 
 		Set<Transaction> allTransactions = new HashSet<>();
 		for (int txId : validTxIds) {
@@ -136,4 +58,74 @@ public class Simulation {
 			System.out.println("Consensus on: " + size + " transactions: " + consensus.get(size).size());
 		}
 	}
-}
+
+	/**
+	 * Runs a simulation of {@code numNodes} nodes for {@code numRounds} rounds,
+	 * drawing the malicious nodes, the follow graph and the initial distribution
+	 * of {@code validTxIds} from {@code random}, so a seeded {@code random}
+	 * always gives the same outcome.
+	 *
+	 * @param compact pass proposals between nodes as bitsets
+	 * @param verbose print the relay threshold of compliant nodes every round
+	 * @return the nodes after the last round
+	 */
+	public static Node[] simulate(int numNodes, double p_graph, double p_malicious, double p_txDistribution,
+			int numRounds, Set<Integer> validTxIds, Random random, boolean compact, boolean verbose) {
+		// pick which nodes are malicious and which are compliant
+		Node[] nodes = new Node[numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			if (random.nextDouble() < p_malicious) {
+				// When you are ready to try testing with malicious nodes, replace the
+				// instantiation below with an instantiation of a MaliciousNode
+				MaliciousNode node = new MaliciousNode(p_graph, p_malicious, p_txDistribution, numRounds);
+				node.setRandom(new Random(random.nextLong()));
+				nodes[i] = node;
+			} else
+				nodes[i] = new CompliantNode(p_graph, p_malicious, p_txDistribution, numRounds);
+		}
+
+		// print the relay threshold of compliant nodes every round
+		if (verbose) {
+			for (Node node : nodes) {
+				if (node instanceof CompliantNode)
+					((CompliantNode) node).setRoundListener((round, followees_count, relay_threshold,
+							transactions_count) -> System.out.println(
+									"Round: " + round + " Followees:" + followees_count + " Relay threshold: " + relay_threshold));
+			}
+		}
+
+		// initialize random follow graph
+		FollowGraph graph = FollowGraph.random(numNodes, p_graph, random); // p_graph is .1, .2, or .3
+
+		// notify all nodes of their followees
+		graph.notifyFollowees(nodes);
+
+		// distribute the Transactions throughout the nodes, to initialize
+		// the starting state of Transactions each node has heard. The distribution
+		// is random with probability p_txDistribution for each Transaction-Node pair.
+		for (int i = 0; i < numNodes; i++) {
+			HashSet<Transaction> pendingTransactions = new HashSet<Transaction>();
+			for (Integer txID : validTxIds) {
+				if (random.nextDouble() < p_txDistribution) // p_txDistribution is .01, .05, or .10.
+					pendingTransactions.add(new Transaction(txID));
+			}
+			nodes[i].setPendingTransaction(pendingTransactions);
+		}
+
+		// Simulate for numRounds times, numRounds is either 10 or 20
+		SimulationEngine engine = new SimulationEngine(nodes, graph, validTxIds);
+		engine.setCompact(compact);
+		engine.run(numRounds);
+		return nodes;
+	}
+
+	/** @return up to {@code numTx} random transaction ids, duplicates drawn are dropped */
+	public static Set<Integer> validTxIds(int numTx, Random random) {
+		HashSet<Integer> validTxIds = new HashSet<Integer>();
+		for (int i = 0; i < numTx; i++) {
+			int r = random.nextInt();
+			validTxIds.add(r);
+		}
+		return validTxIds;
+	}
+}
\ No newline at end of file
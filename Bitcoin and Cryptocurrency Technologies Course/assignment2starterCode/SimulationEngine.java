@@ -0,0 +1,109 @@
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the rounds of a consensus simulation on all available cores. A round has
+ * two phases, each run for all nodes in parallel: every node sends its
+ * proposals, which are copied, and then every node receives the candidates
+ * proposed by its followees. The receive phase only starts once all proposals
+ * are copied, so nodes may change the sets they sent. Each node's candidates
+ * are gathered by a single task in order of the sending node, so a round has
+ * the same outcome as a sequential one. Candidates are routed along the edges
+ * of the follow graph only, so a round takes time proportional to the number
+ * of edges times the number of proposed transactions.
+ *
+ * <p>
+ * In compact mode the valid transactions are indexed and proposals are passed
+ * as bitsets over the index, see {@link Node#sendBitsToFollowers}, so no
+ * {@link Candidate} needs to be allocated for nodes that handle bitsets.
+ */
+public class SimulationEngine {
+
+	private final Node[] nodes;
+	private final FollowGraph graph;
+	private final Set<Integer> validTxIds;
+	private TransactionIndex index;
+
+	public SimulationEngine(Node[] nodes, FollowGraph graph, Set<Integer> validTxIds) {
+		this.nodes = nodes;
+		this.graph = graph;
+		this.validTxIds = validTxIds;
+	}
+
+	public void run(int numRounds) {
+		for (int round = 0; round < numRounds; round++)
+			runRound();
+	}
+
+	/** Passes proposals as bitsets if {@code compact} is true */
+	public void setCompact(boolean compact) {
+		index = compact ? new TransactionIndex(validTxIds) : null;
+	}
+
+	public void runRound() {
+		if (index != null)
+			runCompactRound();
+		else
+			runObjectRound();
+	}
+
+	private void runObjectRound() {
+		int numNodes = nodes.length;
+
+		// only valid transactions are passed on, and only if someone listens
+		Transaction[][] proposals = new Transaction[numNodes][];
+		IntStream.range(0, numNodes).parallel().forEach(i -> {
+			Set<Transaction> sent = nodes[i].sendToFollowers();
+			if (graph.followerCount(i) == 0)
+				return;
+			proposals[i] = sent.stream()
+					.filter(tx -> validTxIds.contains(tx.id))
+					.toArray(Transaction[]::new);
+		});
+
+		IntStream.range(0, numNodes).parallel().forEach(j -> {
+			Set<Candidate> candidates = new LinkedHashSet<>();
+			for (int i : graph.getFollowees(j)) {
+				for (Transaction tx : proposals[i])
+					candidates.add(new Candidate(tx, i));
+			}
+			if (!candidates.isEmpty())
+				nodes[j].receiveFromFollowees(candidates);
+		});
+	}
+
+	private void runCompactRound() {
+		int numNodes = nodes.length;
+		int words = index.words();
+		// bits past the last transaction must stay clear
+		long lastWord = index.size() % 64 == 0 ? -1L : (1L << (index.size() % 64)) - 1;
+
+		long[][] proposals = new long[numNodes][];
+		IntStream.range(0, numNodes).parallel().forEach(i -> {
+			long[] sent = nodes[i].sendBitsToFollowers(index);
+			if (graph.followerCount(i) == 0)
+				return;
+			proposals[i] = Arrays.copyOf(sent, words);
+			if (words > 0)
+				proposals[i][words - 1] &= lastWord;
+		});
+
+		IntStream.range(0, numNodes).parallel().forEach(j -> {
+			int[] followees = graph.getFollowees(j);
+			if (anySent(followees, proposals))
+				nodes[j].receiveBitsFromFollowees(index, followees, proposals);
+		});
+	}
+
+	private static boolean anySent(int[] followees, long[][] proposals) {
+		for (int i : followees) {
+			for (long word : proposals[i]) {
+				if (word != 0)
+					return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,83 @@
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the simulation for all 3x3x3x2 = 54 combinations of p_graph,
+ * p_malicious, p_txDistribution and numRounds, each with several seeds, and
+ * prints one CSV row per run. Runs execute in parallel and every run draws all
+ * of its randomness from a {@code Random} seeded with its seed, so any row can
+ * be reproduced on its own. Rows are printed in grid order once all runs are
+ * done.
+ *
+ * <p>
+ * Each row gives the number of compliant nodes, the number of transactions all
+ * of them agree on, the ratio of that to the number of transactions any of them
+ * ended with (1 when they all hold the same set), and the wall time of the run.
+ *
+ * <p>
+ * Usage: {@code java SimulationSweep [seeds] [numNodes]}, by default 5 seeds
+ * of 100 nodes.
+ */
+public class SimulationSweep {
+
+	private static final double[] P_GRAPH = { .1, .2, .3 };
+	private static final double[] P_MALICIOUS = { .15, .30, .45 };
+	private static final double[] P_TX_DISTRIBUTION = { .01, .05, .10 };
+	private static final int[] NUM_ROUNDS = { 10, 20 };
+
+	private static final int NUM_TX = 500;
+
+	public static void main(String[] args) {
+		int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int numNodes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		int configs = P_GRAPH.length * P_MALICIOUS.length * P_TX_DISTRIBUTION.length * NUM_ROUNDS.length;
+		String[] rows = new String[configs * seeds];
+		IntStream.range(0, rows.length).parallel().forEach(run -> rows[run] = run(run / seeds, run % seeds, numNodes));
+
+		System.out.println(
+				"p_graph,p_malicious,p_txDistribution,numRounds,seed,compliant_nodes,consensus_size,agreement_ratio,wall_millis");
+		for (String row : rows)
+			System.out.println(row);
+	}
+
+	// configurations are numbered with numRounds varying fastest and p_graph slowest
+	private static String run(int config, long seed, int numNodes) {
+		int numRounds = NUM_ROUNDS[config % NUM_ROUNDS.length];
+		config /= NUM_ROUNDS.length;
+		double p_txDistribution = P_TX_DISTRIBUTION[config % P_TX_DISTRIBUTION.length];
+		config /= P_TX_DISTRIBUTION.length;
+		double p_malicious = P_MALICIOUS[config % P_MALICIOUS.length];
+		double p_graph = P_GRAPH[config / P_MALICIOUS.length];
+
+		long start = System.nanoTime();
+		Random random = new Random(seed);
+		Set<Integer> validTxIds = Simulation.validTxIds(NUM_TX, random);
+		Node[] nodes = Simulation.simulate(numNodes, p_graph, p_malicious, p_txDistribution, numRounds, validTxIds,
+				random, true, false);
+		long wallMillis = (System.nanoTime() - start) / 1000000;
+
+		int compliant = 0;
+		Set<Transaction> consensus = null;
+		Set<Transaction> union = new HashSet<Transaction>();
+		for (Node node : nodes) {
+			if (!(node instanceof CompliantNode))
+				continue;
+			compliant++;
+			Set<Transaction> transactions = node.sendToFollowers();
+			union.addAll(transactions);
+			if (consensus == null)
+				consensus = new HashSet<Transaction>(transactions);
+			else
+				consensus.retainAll(transactions);
+		}
+		int consensusSize = consensus == null ? 0 : consensus.size();
+		double agreement = union.isEmpty() ? 1 : (double) consensusSize / union.size();
+
+		return String.format(Locale.ROOT, "%.2f,%.2f,%.2f,%d,%d,%d,%d,%.4f,%d", p_graph, p_malicious, p_txDistribution,
+				numRounds, seed, compliant, consensusSize, agreement, wallMillis);
+	}
+}
@@ -0,0 +1,70 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Numbers the valid transactions of a simulation in increasing order of id, so
+ * a set of them can be held as a bitset of {@code long} words in which bit
+ * {@code t} stands for the transaction with index {@code t}.
+ */
+public class TransactionIndex {
+
+	private final int[] ids;
+
+	public TransactionIndex(Set<Integer> validTxIds) {
+		ids = new int[validTxIds.size()];
+		int t = 0;
+		for (int id : validTxIds)
+			ids[t++] = id;
+		Arrays.sort(ids);
+	}
+
+	/** @return the number of indexed transactions */
+	public int size() {
+		return ids.length;
+	}
+
+	/** @return the number of words in a bitset of indexed transactions */
+	public int words() {
+		return (ids.length + 63) >>> 6;
+	}
+
+	/** @return the index of {@code tx}, or -1 if it is not indexed */
+	public int indexOf(Transaction tx) {
+		int t = Arrays.binarySearch(ids, tx.id);
+		return t < 0 ? -1 : t;
+	}
+
+	public Transaction get(int t) {
+		return new Transaction(ids[t]);
+	}
+
+	/** @return the bitset of the indexed transactions among {@code txs} */
+	public long[] toBits(Set<Transaction> txs) {
+		long[] bits = new long[words()];
+		for (Transaction tx : txs) {
+			int t = indexOf(tx);
+			if (t >= 0)
+				bits[t >>> 6] |= 1L << t;
+		}
+		return bits;
+	}
+
+	/** @return the transactions in {@code bits} */
+	public Set<Transaction> toSet(long[] bits) {
+		Set<Transaction> txs = new HashSet<Transaction>();
+		for (int w = 0; w < bits.length; w++) {
+			for (long word = bits[w]; word != 0; word &= word - 1)
+				txs.add(get((w << 6) + Long.numberOfTrailingZeros(word)));
+		}
+		return txs;
+	}
+
+	/** @return the number of transactions in {@code bits} */
+	public static int count(long[] bits) {
+		int count = 0;
+		for (long word : bits)
+			count += Long.bitCount(word);
+		return count;
+	}
+}
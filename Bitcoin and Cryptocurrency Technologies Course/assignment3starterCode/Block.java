@@ -1,6 +1,4 @@
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 
@@ -62,12 +60,7 @@ public class Block {
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        byte[] rawBlock = getRawBlock();
+        hash = Crypto.getDigest().digest(rawBlock);
     }
 }
@@ -1,6 +1,13 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 // Block Chain should maintain only limited block nodes to satisfy the functions
 // You should not have all the blocks added to the block chain in memory 
@@ -9,21 +16,98 @@ import java.util.List;
 public class BlockChain {
 	public static final int CUT_OFF_AGE = 10;
 
+	/** How block nodes keep their UTXO state */
+	public enum UTXOStorage {
+		/** every block node holds its own pool */
+		SNAPSHOT,
+		/**
+		 * only the tip pool is kept; block nodes hold undo journals and other
+		 * branches are rebuilt from the tip by replaying them
+		 */
+		JOURNAL
+	}
+
 	private int height = 1;
 	private BlockNode lastBlockNode;
 
+	private UTXOStorage utxoStorage;
+	// pool of the max height block in JOURNAL mode
+	private UTXOPool tipPool;
+
 	private TransactionPool txPool = new TransactionPool();
-	private List<BlockNode> blockNodes = new ArrayList<>(CUT_OFF_AGE);
+	// optional archive of every added block
+	private BlockStore blockStore;
+	// block index keyed by block hash
+	private Map<ByteArrayWrapper, BlockNode> blockNodes = new HashMap<>();
+	// block nodes grouped by height, pruned bucket by bucket as the tip advances
+	private Map<Integer, List<BlockNode>> heightBuckets = new HashMap<>();
+	private int prunedHeight = 0;
 
 	/**
 	 * create an empty block chain with just a genesis block. Assume
 	 * {@code genesisBlock} is a valid block
 	 */
 	public BlockChain(Block genesisBlock) {
-		lastBlockNode = new BlockNode(genesisBlock, new UTXOPool(), height);
-		blockNodes.add(lastBlockNode);
+		this(genesisBlock, UTXOStorage.SNAPSHOT);
+	}
 
-		addUTXOs(lastBlockNode, genesisBlock.getCoinbase());
+	/**
+	 * create an empty block chain with just a genesis block, keeping UTXO state
+	 * as {@code utxoStorage}
+	 */
+	public BlockChain(Block genesisBlock, UTXOStorage utxoStorage) {
+		this(genesisBlock, utxoStorage, new UTXOPool());
+	}
+
+	/**
+	 * create a block chain with just a genesis block on top of {@code utxoPool}.
+	 * Pools of later blocks are copies of it, so they use the same kind of
+	 * {@link UTXOStore}. A store that already holds a chain's state must be
+	 * resumed with {@link #resume(MappedUTXOStore, BlockStore)} instead.
+	 */
+	public BlockChain(Block genesisBlock, UTXOStorage utxoStorage, UTXOPool utxoPool) {
+		this.utxoStorage = utxoStorage;
+
+		BlockUndo undo = new BlockUndo();
+		undo.createOutputs(utxoPool, genesisBlock.getCoinbase());
+
+		lastBlockNode = new BlockNode(genesisBlock, null, height);
+		storeUTXOs(lastBlockNode, utxoPool, undo);
+		indexBlockNode(lastBlockNode);
+	}
+
+	// chain whose only block node is tipBlock, on top of its committed pool
+	private BlockChain(Block tipBlock, int height, UTXOPool tipPool) {
+		this.utxoStorage = UTXOStorage.JOURNAL;
+		this.height = height;
+		this.prunedHeight = height - 1;
+		this.tipPool = tipPool;
+
+		lastBlockNode = new BlockNode(tipBlock, null, height);
+		indexBlockNode(lastBlockNode);
+	}
+
+	/**
+	 * Resumes a JOURNAL block chain from the state committed to {@code utxoStore},
+	 * at the tip block recorded by {@link MappedUTXOStore#getTipHash()}, which is
+	 * read with its height from {@code blockStore}. Blocks added from then on are
+	 * archived in {@code blockStore}. Undo journals are not persisted, so only the
+	 * tip can be extended or forked from until new blocks are added.
+	 * 
+	 * @throws IOException if no tip was committed or the tip block is not stored
+	 */
+	public static BlockChain resume(MappedUTXOStore utxoStore, BlockStore blockStore) throws IOException {
+		byte[] tipHash = utxoStore.getTipHash();
+		if (tipHash == null) {
+			throw new IOException("no tip committed to the UTXO store");
+		}
+		Block tipBlock = blockStore.get(tipHash);
+		if (tipBlock == null) {
+			throw new IOException("tip block is not in the block store");
+		}
+		BlockChain blockChain = new BlockChain(tipBlock, blockStore.getHeight(tipHash), new UTXOPool(utxoStore));
+		blockChain.setBlockStore(blockStore);
+		return blockChain;
 	}
 
 	/** Get the maximum height block */
@@ -33,7 +117,7 @@ public class BlockChain {
 
 	/** Get the UTXOPool for mining a new block on top of max height block */
 	public UTXOPool getMaxHeightUTXOPool() {
-		return getMaxHeightBlockNode().utxoPool;
+		return getUTXOPool(getMaxHeightBlockNode());
 	}
 
 	/** Get the transaction pool to mine a new block */
@@ -41,6 +125,83 @@ public class BlockChain {
 		return txPool;
 	}
 
+	/**
+	 * Pool transactions in {@code txPool} from now on, e.g. one with different
+	 * limits
+	 */
+	public void setTransactionPool(TransactionPool txPool) {
+		this.txPool = txPool;
+	}
+
+	/**
+	 * Archive the retained blocks, including the genesis block of a new chain, and
+	 * every block added from now on in {@code blockStore}, so blocks can still be
+	 * served by {@link #getBlock(byte[])} once they have been pruned and the chain
+	 * can be resumed from any tip
+	 * 
+	 * @throws UncheckedIOException if the block store cannot be written
+	 */
+	public void setBlockStore(BlockStore blockStore) {
+		this.blockStore = blockStore;
+		for (BlockNode blockNode : blockNodes.values()) {
+			if (blockNode.block != null) {
+				archiveBlock(blockNode.block, blockNode.height);
+			}
+		}
+	}
+
+	/**
+	 * Get the block with hash {@code hash} from the retained block nodes or the
+	 * block store
+	 * 
+	 * @return the block, or null if it is unknown
+	 * @throws UncheckedIOException if the block store cannot be read
+	 */
+	public Block getBlock(byte[] hash) {
+		BlockNode blockNode = blockNodes.get(new ByteArrayWrapper(hash));
+		if (blockNode != null) {
+			return blockNode.block;
+		}
+		if (blockStore == null) {
+			return null;
+		}
+		try {
+			return blockStore.get(hash);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Get the number of block nodes retained within the fork window */
+	public int getBlockNodeCount() {
+		return blockNodes.size();
+	}
+
+	/**
+	 * Get the number of distinct UTXO entries held by the pools and undo journals
+	 * of retained block nodes, telling entries apart by their output object.
+	 * Entries that pools share, or that a journal shares with the tip pool, are
+	 * counted once. This walks every retained pool, so it is meant for monitoring
+	 * rather than for calling on every block.
+	 */
+	public long getRetainedUTXOCount() {
+		Set<Transaction.Output> retained = Collections.newSetFromMap(new IdentityHashMap<>());
+		Set<UTXOPool> pools = Collections.newSetFromMap(new IdentityHashMap<>());
+		if (tipPool != null) {
+			pools.add(tipPool);
+			tipPool.forEach((utxo, txOut) -> retained.add(txOut));
+		}
+		for (BlockNode blockNode : blockNodes.values()) {
+			if (blockNode.utxoPool != null && pools.add(blockNode.utxoPool)) {
+				blockNode.utxoPool.forEach((utxo, txOut) -> retained.add(txOut));
+			}
+			if (blockNode.undo != null) {
+				blockNode.undo.forEach((utxo, txOut) -> retained.add(txOut));
+			}
+		}
+		return retained.size();
+	}
+
 	/**
 	 * Add {@code block} to the block chain if it is valid. For validity, all
 	 * transactions should be valid and block should be at
@@ -55,125 +216,370 @@ public class BlockChain {
 	 * @return true if block is successfully added
 	 */
 	public boolean addBlock(Block block) {
-		if (isBlockValid(block)) {
-			processBlock(block);
-			// cleanupBlockNodes();
+		BlockUndo undo = validateBlock(block);
+		if (undo != null) {
+			processBlock(block, undo);
+			cleanupBlockNodes();
 			return true;
 		} else {
 			return false;
 		}
 	}
 
-	boolean isBlockValid(Block block) {
+	/**
+	 * Validates the transactions of {@code block} in one pass over an overlay of
+	 * the parent's UTXO pool, applying each one so that later transactions can
+	 * spend outputs created earlier in the block. The parent's pool is neither
+	 * copied nor changed.
+	 * 
+	 * @return the UTXO changes made by the block, or null if it is invalid
+	 */
+	BlockUndo validateBlock(Block block) {
 		// missing parent block
 		BlockNode parentNode = getParentBlockNode(block);
 		if (parentNode == null) {
-			return false;
+			return null;
 		}
 
 		// reject genesis blocks
 		if (block.getPrevBlockHash() == null) {
-			return false;
+			return null;
 		}
 
 		// check cutoff distance
 		if (height - parentNode.height > CUT_OFF_AGE) {
-			return false;
+			return null;
+		}
+
+		// branch forked below the retained journals
+		UTXOPool parentPool = getUTXOPool(parentNode);
+		if (parentPool == null) {
+			return null;
 		}
 
-		// valid transactions
-		TxHandler txHandler = new TxHandler(parentNode.utxoPool);
+		// valid transactions, the handler's copy of the overlay is all that changes
+		TxHandler txHandler = new TxHandler(new UTXOPool(new UTXOOverlay(parentPool)));
+		UTXOPool utxoPool = txHandler.getUTXOPool();
+		Transaction[] txs = block.getTransactions().toArray(new Transaction[0]);
+		Set<Transaction> verified = txHandler.verifySignatures(txs);
+		BlockUndo undo = new BlockUndo();
 		for (Transaction transaction : block.getTransactions()) {
-			if (!txHandler.isValidTx(transaction)) {
-				return false;
+			if (!txHandler.isValidTx(transaction, verified)) {
+				return null;
 			}
+			undo.spendInputs(utxoPool, transaction);
+			undo.createOutputs(utxoPool, transaction);
 		}
-		return true;
+
+		// add utxo for coinbase
+		undo.createOutputs(utxoPool, block.getCoinbase());
+		return undo;
 	}
 
-	void processBlock(Block block) {
+	/** Adds {@code block}, whose UTXO changes {@code undo} have been validated */
+	void processBlock(Block block, BlockUndo undo) {
 		BlockNode parentNode = getParentBlockNode(block);
+		BlockNode blockNode = new BlockNode(block, parentNode, parentNode.height + 1);
+		boolean longest = blockNode.height == height + 1;
 
-		// add new block
-		BlockNode blockNode = new BlockNode(block, parentNode.utxoPool, parentNode.height + 1);
-		blockNodes.add(blockNode);
-
-		// update tx and utxo pools
-		for (Transaction tx : block.getTransactions()) {
-			txPool.removeTransaction(tx.getHash());
-
-			removeUTXOs(blockNode, tx);
-			addUTXOs(blockNode, tx);
+		// commit the validated changes as the new node's state
+		UTXOPool utxoPool = getChildUTXOPool(parentNode, longest);
+		if (utxoPool != null) {
+			undo.apply(utxoPool);
 		}
 
-		// add utxo for coinbase
-		addUTXOs(blockNode, block.getCoinbase());
+		// add new block
+		indexBlockNode(blockNode);
+		archiveBlock(block, blockNode.height);
 
 		// update longest chain
-		if (blockNode.height == height + 1) {
+		BlockNode oldTip = lastBlockNode;
+		if (longest) {
 			this.height = blockNode.height;
 			this.lastBlockNode = blockNode;
 		}
+		storeUTXOs(blockNode, utxoPool, undo);
+
+		// update tx pool, side branches leave it alone until they take over
+		if (longest && parentNode == oldTip) {
+			for (Transaction tx : block.getTransactions()) {
+				txPool.removeTransaction(tx.getHash());
+				txPool.removeConflicts(tx);
+			}
+		} else if (longest) {
+			reorganizeTransactions(oldTip, blockNode);
+		}
 	}
 
-	/** Add a transaction to the transaction pool */
+	/**
+	 * After the tip moved from {@code oldTip} to the branch of {@code newTip},
+	 * returns the transactions of the disconnected blocks to the pool and
+	 * revalidates the whole pool against the new tip in one batch, in dependency
+	 * order. Transactions mined on the new branch, conflicting with it or
+	 * depending on such transactions are dropped, as are descendants of
+	 * transactions the pool does not take back. Transactions that stay pooled
+	 * keep their arrival time, so a reorganization does not delay their expiry.
+	 */
+	private void reorganizeTransactions(BlockNode oldTip, BlockNode newTip) {
+		List<Block> disconnected = new ArrayList<>();
+		Set<ByteArrayWrapper> mined = new HashSet<>();
+		// pruned nodes have neither a block nor a parent, the walk stops there
+		BlockNode from = oldTip;
+		BlockNode to = newTip;
+		while (from != to && from != null && to != null) {
+			if (from.height >= to.height) {
+				if (from.block != null) {
+					disconnected.add(from.block);
+				}
+				from = from.parent;
+			} else {
+				if (to.block != null) {
+					for (Transaction tx : to.block.getTransactions()) {
+						mined.add(new ByteArrayWrapper(tx.getHash()));
+					}
+				}
+				to = to.parent;
+			}
+		}
+
+		List<Transaction> candidates = new ArrayList<>();
+		for (int i = disconnected.size() - 1; i >= 0; i--) {
+			candidates.addAll(disconnected.get(i).getTransactions());
+		}
+		candidates.addAll(txPool.getTransactions());
+		candidates.removeIf(tx -> mined.contains(new ByteArrayWrapper(tx.getHash())));
+
+		UTXOPool tip = getUTXOPool(newTip);
+		TxHandler txHandler = new DependencyTxHandler(new UTXOPool(new UTXOOverlay(tip)));
+		Transaction[] accepted = txHandler.handleTxs(candidates.toArray(new Transaction[0]));
+
+		// pooled survivors keep their entries, and so the time they arrived
+		Set<ByteArrayWrapper> kept = new HashSet<>();
+		for (Transaction tx : accepted) {
+			kept.add(new ByteArrayWrapper(tx.getHash()));
+		}
+		for (Transaction tx : txPool.getTransactions()) {
+			if (!kept.contains(new ByteArrayWrapper(tx.getHash()))) {
+				txPool.removeTransaction(tx.getHash());
+			}
+		}
+
+		// re-add the rest parents first, pricing each against the outputs before it
+		UTXOPool utxoPool = new UTXOPool(new UTXOOverlay(tip));
+		for (Transaction tx : accepted) {
+			// descendants of a transaction the pool turned away have nothing to spend
+			if (!spendsPooledOutputs(tx, tip, utxoPool)) {
+				txPool.removeTransaction(tx.getHash());
+				continue;
+			}
+			if (txPool.getTransaction(tx.getHash()) == null
+					&& !txPool.addTransaction(tx, new TxHandler(utxoPool).fee(tx))) {
+				continue;
+			}
+			for (Transaction.Input txIn : tx.getInputs()) {
+				utxoPool.removeUTXO(new UTXO(txIn.prevTxHash, txIn.outputIndex));
+			}
+			addUTXOs(utxoPool, tx);
+		}
+	}
+
+	/**
+	 * @return true if every input of {@code tx} is in {@code utxoPool} and is an
+	 *         output of the {@code tip} pool or of a transaction still pooled
+	 */
+	private boolean spendsPooledOutputs(Transaction tx, UTXOPool tip, UTXOPool utxoPool) {
+		for (Transaction.Input txIn : tx.getInputs()) {
+			if (!utxoPool.contains(txIn.prevTxHash, txIn.outputIndex)) {
+				return false;
+			}
+			if (!tip.contains(txIn.prevTxHash, txIn.outputIndex) && txPool.getTransaction(txIn.prevTxHash) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a transaction to the transaction pool if it is valid on top of the max
+	 * height block and the pool admits it
+	 */
 	public void addTransaction(Transaction tx) {
-		txPool.addTransaction(tx);
-		addUTXOs(lastBlockNode, tx);
+		// the tip pool is left alone, outputs of pooled parents go on an overlay
+		UTXOPool utxoPool = new UTXOPool(new UTXOOverlay(getUTXOPool(lastBlockNode)));
+		for (Transaction.Input txIn : tx.getInputs()) {
+			if (txIn.prevTxHash == null || utxoPool.contains(txIn.prevTxHash, txIn.outputIndex)) {
+				continue;
+			}
+			Transaction parent = txPool.getTransaction(txIn.prevTxHash);
+			if (parent != null && txIn.outputIndex >= 0 && parent.getOutput(txIn.outputIndex) != null) {
+				utxoPool.addUTXO(new UTXO(txIn.prevTxHash, txIn.outputIndex), parent.getOutput(txIn.outputIndex));
+			}
+		}
+		TxHandler txHandler = new TxHandler(utxoPool);
+		if (txHandler.isValidTx(tx)) {
+			txPool.addTransaction(tx, txHandler.fee(tx));
+		}
 	}
 
 	private BlockNode getMaxHeightBlockNode() {
-		for (BlockNode blockNode : blockNodes) {
-			if (blockNode.height == height) {
-				return blockNode;
+		return lastBlockNode;
+	}
+
+	private BlockNode getParentBlockNode(Block block) {
+		byte[] prevBlockHash = block.getPrevBlockHash();
+		if (prevBlockHash == null) {
+			return null;
+		}
+		return blockNodes.get(new ByteArrayWrapper(prevBlockHash));
+	}
+
+	// blocks without a hash (not finalized) cannot be referenced as parents
+	private void indexBlockNode(BlockNode blockNode) {
+		byte[] hash = blockNode.block.getHash();
+		if (hash != null) {
+			blockNodes.put(new ByteArrayWrapper(hash), blockNode);
+		}
+		heightBuckets.computeIfAbsent(blockNode.height, h -> new ArrayList<>()).add(blockNode);
+	}
+
+	// must be called after the tip has been updated for blockNode
+	private void storeUTXOs(BlockNode blockNode, UTXOPool utxoPool, BlockUndo undo) {
+		if (utxoStorage == UTXOStorage.SNAPSHOT) {
+			blockNode.utxoPool = utxoPool;
+		} else {
+			blockNode.undo = undo;
+			if (blockNode == lastBlockNode) {
+				tipPool = utxoPool;
+				tipPool.commit(blockNode.block.getHash());
 			}
 		}
-		return null;
 	}
 
-	private BlockNode getParentBlockNode(Block block) {
-		for (BlockNode blockNode : blockNodes) {
-			if (blockNode.block.getHash() == block.getPrevBlockHash()) {
-				return blockNode;
+	/**
+	 * In JOURNAL mode, rolls an overlay of the tip pool back to the fork point and
+	 * forward along the branch of {@code blockNode}, so the tip's store is never
+	 * copied. The result is only valid until the tip pool changes.
+	 * 
+	 * @return the pool after {@code blockNode}, or null if the fork point has
+	 *         been pruned
+	 */
+	private UTXOPool getUTXOPool(BlockNode blockNode) {
+		if (utxoStorage == UTXOStorage.SNAPSHOT) {
+			return blockNode.utxoPool;
+		}
+		if (blockNode == lastBlockNode) {
+			return tipPool;
+		}
+
+		UTXOPool utxoPool = new UTXOPool(new UTXOOverlay(tipPool));
+		if (!rollUTXOs(utxoPool, lastBlockNode, blockNode)) {
+			return null;
+		}
+		return utxoPool;
+	}
+
+	/**
+	 * Get the pool to apply a child of {@code parentNode} to. In JOURNAL mode a
+	 * child that becomes the tip is applied to the tip pool itself, after moving
+	 * it to {@code parentNode}, so the tip keeps its store, and any other child
+	 * only keeps its journal so there is no pool to apply it to.
+	 */
+	private UTXOPool getChildUTXOPool(BlockNode parentNode, boolean longest) {
+		if (utxoStorage == UTXOStorage.JOURNAL) {
+			if (!longest) {
+				return null;
 			}
+			rollUTXOs(tipPool, lastBlockNode, parentNode);
+			return tipPool;
 		}
-		return null;
+		// new pool shares structure with the parent's
+		return new UTXOPool(getUTXOPool(parentNode));
 	}
 
-	private void addUTXOs(BlockNode blockNode, Transaction tx) {
+	/**
+	 * Moves {@code utxoPool} from the state after {@code from} to the state after
+	 * {@code to} by reverting undo journals back to their fork point and
+	 * replaying them forward along the branch of {@code to}.
+	 * 
+	 * @return false if the fork point has been pruned
+	 */
+	private boolean rollUTXOs(UTXOPool utxoPool, BlockNode from, BlockNode to) {
+		List<BlockNode> branch = new ArrayList<>();
+		BlockNode tip = from;
+		BlockNode node = to;
+		while (tip != node) {
+			if (tip.height >= node.height) {
+				if (tip.undo == null) {
+					return false;
+				}
+				tip.undo.revert(utxoPool);
+				tip = tip.parent;
+			} else {
+				if (node.undo == null) {
+					return false;
+				}
+				branch.add(node);
+				node = node.parent;
+			}
+		}
+		for (int i = branch.size() - 1; i >= 0; i--) {
+			branch.get(i).undo.apply(utxoPool);
+		}
+		return true;
+	}
+
+	private void archiveBlock(Block block, int height) {
+		if (blockStore == null || block.getHash() == null) {
+			return;
+		}
+		try {
+			blockStore.put(block, height);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void addUTXOs(UTXOPool utxoPool, Transaction tx) {
 		int index = 0;
 		for (Transaction.Output txOut : tx.getOutputs()) {
 			UTXO utxo = new UTXO(tx.getHash(), index);
-			blockNode.utxoPool.addUTXO(utxo, txOut);
+			utxoPool.addUTXO(utxo, txOut);
 			index++;
 		}
 	}
 
-	private void removeUTXOs(BlockNode blockNode, Transaction tx) {
-		for (Transaction.Input txIn : tx.getInputs()) {
-			UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
-			blockNode.utxoPool.removeUTXO(utxo);
-		}
-	}
-
+	// blocks below this height can no longer be parents, see validateBlock
 	private void cleanupBlockNodes() {
-		Iterator<BlockNode> iterator = blockNodes.iterator();
-		while (iterator.hasNext()) {
-			BlockNode blockNode = iterator.next();
-			if (blockNode.height < height - CUT_OFF_AGE - 1) {
-				iterator.remove();
+		int minHeight = height - CUT_OFF_AGE;
+		while (prunedHeight < minHeight - 1) {
+			prunedHeight++;
+			List<BlockNode> bucket = heightBuckets.remove(prunedHeight);
+			if (bucket == null) {
+				continue;
+			}
+			for (BlockNode blockNode : bucket) {
+				byte[] hash = blockNode.block.getHash();
+				if (hash != null) {
+					blockNodes.remove(new ByteArrayWrapper(hash));
+				}
+				blockNode.block = null;
+				blockNode.parent = null;
+				blockNode.utxoPool = null;
+				blockNode.undo = null;
 			}
 		}
 	}
 
 	private class BlockNode {
 		Block block;
+		BlockNode parent;
 		UTXOPool utxoPool;
+		BlockUndo undo;
 		int height;
 
-		public BlockNode(Block block, UTXOPool utxoPool, int height) {
+		public BlockNode(Block block, BlockNode parent, int height) {
 			this.block = block;
-			this.utxoPool = utxoPool;
+			this.parent = parent;
 			this.height = height;
 		}
 	}
@@ -1,6 +1,9 @@
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -14,6 +17,7 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class BlockChainTests {
 	static PublicKey genesisAddress;
@@ -66,6 +70,15 @@ public class BlockChainTests {
 		assertTrue(blockChain.addBlock(block));
 	}
 
+	@Test
+	@DisplayName("resolve parent block by hash contents")
+	void resolveParentByHashContents() {
+		Block block = new Block(genesisBlock.getHash().clone(), genesisAddress);
+		block.finalize();
+		assertTrue(blockChain.addBlock(block));
+		assertArrayEquals(block.getHash(), blockChain.getMaxHeightBlock().getHash());
+	}
+
 	@Test
 	@DisplayName("reject block if greater than cutoff distance")
 	void rejectBlockIfGreaterThanCutoff() {
@@ -79,22 +92,759 @@ public class BlockChainTests {
 		assertFalse(blockChain.addBlock(block));
 	}
 	
+	@Test
+	@DisplayName("prune block nodes below cutoff distance")
+	void pruneBlockNodesBelowCutoff() {
+		Block block = genesisBlock;
+		for (int i = 0; i < 3 * BlockChain.CUT_OFF_AGE; i++) {
+			block = new Block(block.getHash(), genesisAddress);
+			block.finalize();
+			assertTrue(blockChain.addBlock(block));
+		}
+		assertEquals(BlockChain.CUT_OFF_AGE + 1, blockChain.getBlockNodeCount());
+	}
+	
+	@Test
+	@DisplayName("count UTXOs shared by retained block nodes once")
+	void countSharedRetainedUTXOsOnce() throws NoSuchAlgorithmException {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		PublicKey[] miners = new PublicKey[3];
+		for (int i = 0; i < miners.length; i++) {
+			miners[i] = kpg.generateKeyPair().getPublic();
+		}
+
+		for (BlockChain.UTXOStorage utxoStorage : BlockChain.UTXOStorage.values()) {
+			blockChain = new BlockChain(genesisBlock, utxoStorage);
+			Block block = genesisBlock;
+			for (PublicKey miner : miners) {
+				block = new Block(block.getHash(), miner);
+				block.finalize();
+				assertTrue(blockChain.addBlock(block));
+			}
+			assertEquals(utxoStorage.name(), 4, blockChain.getRetainedUTXOCount());
+		}
+	}
+
 	@Test
 	@DisplayName("spend coinbase transaction")
 	void spendCoinbaseTransaction() {
+		Transaction tx = spendGenesisCoinbase(10);
+		
+		Block block = new Block(genesisBlock.getHash(), genesisAddress);
+		block.addTransaction(tx);
+		block.finalize();
+		
+		assertTrue(blockChain.addBlock(block));
+	}
+	
+	@Test
+	@DisplayName("reject transaction whose output was redirected after signing")
+	void rejectOutputRedirectedAfterSigning() {
+		Transaction tx = spendGenesisCoinbase(10);
+		blockChain.addTransaction(tx);
+		assertEquals(1, blockChain.getTransactionPool().size());
+
+		tx.getOutput(0).address = genesisAddress;
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(tx);
+		block.finalize();
+		assertFalse(blockChain.addBlock(block));
+	}
+
+	@Test
+	@DisplayName("spend same output on competing forks")
+	void spendSameOutputOnCompetingForks() {
+		for (int i = 0; i < 2; i++) {
+			Transaction tx = spendGenesisCoinbase(10 + i);
+
+			Block block = new Block(genesisBlock.getHash(), address);
+			block.addTransaction(tx);
+			block.finalize();
+
+			assertTrue(blockChain.addBlock(block));
+		}
+	}
+
+	@Test
+	@DisplayName("spend output created earlier in the same block")
+	void spendOutputCreatedEarlierInSameBlock() {
+		Transaction parent = spendGenesisCoinbase(10);
+
+		Transaction child = new Transaction();
+		child.addInput(parent.getHash(), 0);
+		child.addOutput(10, genesisAddress);
+		child.addSignature(getSignature(child, 0, secret), 0);
+		child.finalize();
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(parent);
+		block.addTransaction(child);
+		block.finalize();
+
+		assertTrue(blockChain.addBlock(block));
+		UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+		assertFalse(utxoPool.contains(parent.getHash(), 0));
+		assertTrue(utxoPool.contains(child.getHash(), 0));
+	}
+
+	@Test
+	@DisplayName("drop pooled transaction conflicting with mined one")
+	void dropPooledTransactionConflictingWithMinedOne() {
+		Transaction pooled = spendGenesisCoinbase(10);
+		blockChain.addTransaction(pooled);
+		assertEquals(1, blockChain.getTransactionPool().size());
+
+		Transaction mined = spendGenesisCoinbase(20);
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(mined);
+		block.finalize();
+
+		assertTrue(blockChain.addBlock(block));
+		assertEquals(0, blockChain.getTransactionPool().size());
+	}
+
+	@Test
+	@DisplayName("return transactions of disconnected blocks to the pool on reorganization")
+	void readmitTransactionsOnReorganization() {
+		Transaction tx = spendGenesisCoinbase(10);
+
+		Transaction child = new Transaction();
+		child.addInput(tx.getHash(), 0);
+		child.addOutput(5, genesisAddress);
+		child.addSignature(getSignature(child, 0, secret), 0);
+		child.finalize();
+		blockChain.addTransaction(tx);
+		blockChain.addTransaction(child);
+		assertEquals(2, blockChain.getTransactionPool().size());
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(tx);
+		block.finalize();
+		assertTrue(blockChain.addBlock(block));
+		assertEquals(1, blockChain.getTransactionPool().size());
+
+		Block fork = genesisBlock;
+		for (int i = 0; i < 2; i++) {
+			fork = new Block(fork.getHash(), address);
+			fork.finalize();
+			assertTrue(blockChain.addBlock(fork));
+		}
+
+		TransactionPool txPool = blockChain.getTransactionPool();
+		assertEquals(2, txPool.size());
+		assertNotNull(txPool.getTransaction(tx.getHash()));
+		assertNotNull(txPool.getTransaction(child.getHash()));
+		assertFalse(blockChain.getMaxHeightUTXOPool().contains(tx.getHash(), 0));
+	}
+
+	@Test
+	@DisplayName("drop descendants of transactions the pool turns away on reorganization")
+	void dropDescendantsOfRejectedOnReorganization() {
+		blockChain.setTransactionPool(new TransactionPool(1, Long.MAX_VALUE, Long.MAX_VALUE));
 		Transaction tx = new Transaction();
 		tx.addInput(genesisBlock.getCoinbase().getHash(), 0);
 		tx.addOutput(10, address);
+		tx.addOutput(10, address);
 		tx.addSignature(getSignature(tx, 0, genesisSecret), 0);
 		tx.finalize();
-		
-		Block block = new Block(genesisBlock.getHash(), genesisAddress);
+		Transaction parent = spendOutput(tx.getHash(), 1, 9.99, secret);
+		Transaction child = spendOutput(parent.getHash(), 0, 5, secret);
+
+		Block block = new Block(genesisBlock.getHash(), address);
 		block.addTransaction(tx);
+		block.addTransaction(parent);
 		block.finalize();
-		
 		assertTrue(blockChain.addBlock(block));
+		blockChain.addTransaction(child);
+		assertEquals(1, blockChain.getTransactionPool().size());
+
+		Block fork = genesisBlock;
+		for (int i = 0; i < 2; i++) {
+			fork = new Block(fork.getHash(), address);
+			fork.finalize();
+			assertTrue(blockChain.addBlock(fork));
+		}
+
+		// the full pool turns away the low-fee parent, so its child cannot stay
+		TransactionPool txPool = blockChain.getTransactionPool();
+		assertNull(txPool.getTransaction(parent.getHash()));
+		assertNull(txPool.getTransaction(child.getHash()));
 	}
-	
+
+	@Test
+	@DisplayName("keep arrival time of pooled transactions on reorganization")
+	void keepArrivalTimeOnReorganization() {
+		long[] clock = { 0 };
+		blockChain.setTransactionPool(new TransactionPool(Integer.MAX_VALUE, Long.MAX_VALUE, 1000) {
+			@Override
+			protected long now() {
+				return clock[0];
+			}
+		});
+		Transaction tx = spendGenesisCoinbase(10);
+		blockChain.addTransaction(tx);
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.finalize();
+		assertTrue(blockChain.addBlock(block));
+
+		clock[0] = 900;
+		Block fork = new Block(genesisBlock.getHash(), address);
+		fork.finalize();
+		assertTrue(blockChain.addBlock(fork));
+		Block tip = new Block(fork.getHash(), address);
+		tip.finalize();
+		assertTrue(blockChain.addBlock(tip));
+		TransactionPool txPool = blockChain.getTransactionPool();
+		assertNotNull(txPool.getTransaction(tx.getHash()));
+
+		clock[0] = 1000;
+		blockChain.addTransaction(spendOutput(fork.getCoinbase().getHash(), 0, 10, secret));
+		assertNull(txPool.getTransaction(tx.getHash()));
+		assertEquals(1, txPool.getExpiredCount());
+		assertEquals(1, txPool.size());
+	}
+
+	@Test
+	@DisplayName("roll back spent outputs on reorganization in journal mode")
+	void rollBackSpentOutputsInJournalMode() {
+		blockChain = new BlockChain(genesisBlock, BlockChain.UTXOStorage.JOURNAL);
+
+		Transaction tx = spendGenesisCoinbase(10);
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(tx);
+		block.finalize();
+		assertTrue(blockChain.addBlock(block));
+
+		Block fork = genesisBlock;
+		for (int i = 0; i < 2; i++) {
+			fork = new Block(fork.getHash(), address);
+			fork.finalize();
+			assertTrue(blockChain.addBlock(fork));
+		}
+
+		UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+		assertTrue(utxoPool.contains(new UTXO(genesisBlock.getCoinbase().getHash(), 0)));
+		assertFalse(utxoPool.contains(new UTXO(tx.getHash(), 0)));
+	}
+
+	@Test
+	@DisplayName("restore coinbase recreated by a disconnected block on reorganization")
+	void restoreRecreatedCoinbaseOnReorganization() {
+		for (BlockChain.UTXOStorage utxoStorage : BlockChain.UTXOStorage.values()) {
+			blockChain = new BlockChain(genesisBlock, utxoStorage);
+
+			// pays the same address as genesis, so its coinbase has the same hash
+			Block block = new Block(genesisBlock.getHash(), genesisAddress);
+			block.finalize();
+			assertArrayEquals(genesisBlock.getCoinbase().getHash(), block.getCoinbase().getHash());
+			assertTrue(blockChain.addBlock(block));
+
+			Block fork = genesisBlock;
+			for (int i = 0; i < 2; i++) {
+				fork = new Block(fork.getHash(), address);
+				fork.finalize();
+				assertTrue(blockChain.addBlock(fork));
+			}
+
+			UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+			assertTrue(utxoStorage.name(), utxoPool.contains(new UTXO(genesisBlock.getCoinbase().getHash(), 0)));
+		}
+	}
+
+	@Test
+	@DisplayName("agree on hash and match of UTXO with its transaction hash and index")
+	void agreeOnUTXOHashAndMatch() {
+		byte[] txHash = genesisBlock.getCoinbase().getHash();
+		UTXO utxo = new UTXO(txHash, 0);
+
+		assertEquals(UTXO.hashCode(txHash, 0), utxo.hashCode());
+		assertTrue(utxo.matches(txHash, 0));
+		assertTrue(utxo.matches(txHash.clone(), 0));
+		assertFalse(utxo.matches(txHash, 1));
+
+		UTXO same = new UTXO(txHash.clone(), 0);
+		assertEquals(utxo, same);
+		assertEquals(utxo.hashCode(), same.hashCode());
+		UTXO other = new UTXO(txHash, 1);
+		assertNotEquals(utxo, other);
+		assertNotEquals(UTXO.hashCode(txHash, 0), UTXO.hashCode(txHash, 1));
+		assertFalse(other.matches(txHash, 0));
+	}
+
+	@Test
+	@DisplayName("find UTXO by hash and index after the array of its key is reused")
+	void findUTXOAfterKeyArrayIsReused() {
+		byte[] txHash = genesisBlock.getCoinbase().getHash();
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.finalize();
+		byte[] otherHash = block.getCoinbase().getHash();
+		Transaction.Output txOut = genesisBlock.getCoinbase().getOutput(0);
+
+		for (UTXOPool utxoPool : new UTXOPool[] { new UTXOPool(), new UTXOPool(new OffHeapUTXOStore()) }) {
+			byte[] key = txHash.clone();
+			UTXO utxo = new UTXO(key, 0);
+			utxoPool.addUTXO(utxo, txOut);
+			System.arraycopy(otherHash, 0, key, 0, key.length);
+
+			assertTrue(utxo.matches(txHash, 0));
+			assertFalse(utxo.matches(key, 0));
+			assertEquals(UTXO.hashCode(txHash, 0), utxo.hashCode());
+			assertTrue(utxoPool.contains(txHash, 0));
+			assertTrue(utxoPool.contains(new UTXO(txHash, 0)));
+			assertFalse(utxoPool.contains(key, 0));
+			assertEquals(txOut.value, utxoPool.getTxOutput(txHash, 0).value, 0);
+		}
+	}
+
+	@Test
+	@DisplayName("spend coinbase transaction from off-heap UTXO store")
+	void spendCoinbaseFromOffHeapStore() {
+		blockChain = new BlockChain(genesisBlock, BlockChain.UTXOStorage.JOURNAL,
+				new UTXOPool(new OffHeapUTXOStore()));
+
+		Transaction tx = spendGenesisCoinbase(10);
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(tx);
+		block.finalize();
+
+		assertTrue(blockChain.addBlock(block));
+		assertEquals(10, blockChain.getMaxHeightUTXOPool().getTxOutput(tx.getHash(), 0).value, 0);
+	}
+
+	@Test
+	@DisplayName("restart from mapped UTXO store")
+	void restartFromMappedStore(@TempDir Path dir) throws IOException {
+		MappedUTXOStore store = MappedUTXOStore.open(dir.resolve("utxo"));
+		BlockStore blockStore = BlockStore.open(dir.resolve("blocks"));
+		blockChain = new BlockChain(genesisBlock, BlockChain.UTXOStorage.JOURNAL, new UTXOPool(store));
+		blockChain.setBlockStore(blockStore);
+
+		Transaction tx = spendGenesisCoinbase(10);
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(tx);
+		block.finalize();
+		assertTrue(blockChain.addBlock(block));
+		store.close();
+		blockStore.close();
+
+		store = MappedUTXOStore.open(dir.resolve("utxo"));
+		blockStore = BlockStore.open(dir.resolve("blocks"));
+		blockChain = BlockChain.resume(store, blockStore);
+		assertArrayEquals(block.getHash(), blockChain.getMaxHeightBlock().getHash());
+		UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+		assertTrue(utxoPool.contains(tx.getHash(), 0));
+		assertTrue(utxoPool.contains(block.getCoinbase().getHash(), 0));
+		assertFalse(utxoPool.contains(genesisBlock.getCoinbase().getHash(), 0));
+
+		// the genesis coinbase stays spent and the resumed tip can be extended
+		Block doubleSpend = new Block(block.getHash(), address);
+		doubleSpend.addTransaction(spendGenesisCoinbase(5));
+		doubleSpend.finalize();
+		assertFalse(blockChain.addBlock(doubleSpend));
+
+		Transaction child = new Transaction();
+		child.addInput(tx.getHash(), 0);
+		child.addOutput(10, genesisAddress);
+		child.addSignature(getSignature(child, 0, secret), 0);
+		child.finalize();
+
+		Block next = new Block(block.getHash(), address);
+		next.addTransaction(child);
+		next.finalize();
+		assertTrue(blockChain.addBlock(next));
+		assertArrayEquals(next.getHash(), store.getTipHash());
+		assertEquals(3, blockStore.getHeight(next.getHash()));
+		store.close();
+		blockStore.close();
+	}
+
+	@Test
+	@DisplayName("resume fresh chain from mapped UTXO store")
+	void resumeFreshChainFromMappedStore(@TempDir Path dir) throws IOException {
+		MappedUTXOStore store = MappedUTXOStore.open(dir.resolve("utxo"));
+		BlockStore blockStore = BlockStore.open(dir.resolve("blocks"));
+		blockChain = new BlockChain(genesisBlock, BlockChain.UTXOStorage.JOURNAL, new UTXOPool(store));
+		blockChain.setBlockStore(blockStore);
+		store.close();
+		blockStore.close();
+
+		store = MappedUTXOStore.open(dir.resolve("utxo"));
+		blockStore = BlockStore.open(dir.resolve("blocks"));
+		blockChain = BlockChain.resume(store, blockStore);
+		assertArrayEquals(genesisBlock.getHash(), blockChain.getMaxHeightBlock().getHash());
+		assertTrue(blockChain.getMaxHeightUTXOPool().contains(genesisBlock.getCoinbase().getHash(), 0));
+
+		Block block = new Block(genesisBlock.getHash(), address);
+		block.addTransaction(spendGenesisCoinbase(10));
+		block.finalize();
+		assertTrue(blockChain.addBlock(block));
+		assertEquals(2, blockStore.getHeight(block.getHash()));
+		store.close();
+		blockStore.close();
+	}
+
+	@Test
+	@DisplayName("keep addresses interned by copies of mapped UTXO store out of its files")
+	void keepCopyAddressesOutOfMappedStore(@TempDir Path dir) throws IOException {
+		MappedUTXOStore store = MappedUTXOStore.open(dir);
+		Transaction source = fundingTransaction(1);
+		store.put(new UTXO(source.getHash(), 0), source.getOutput(0));
+		store.commit(genesisBlock.getHash());
+		long persisted = Files.size(dir.resolve("addresses.db"));
+
+		Transaction other = new Transaction();
+		other.addOutput(5, genesisAddress);
+		other.finalize();
+		UTXOStore copy = store.copy();
+		copy.put(new UTXO(other.getHash(), 0), other.getOutput(0));
+		assertEquals(genesisAddress, copy.get(other.getHash(), 0).address);
+		assertEquals(address, copy.get(source.getHash(), 0).address);
+		store.close();
+
+		assertEquals(persisted, Files.size(dir.resolve("addresses.db")));
+	}
+
+	@Test
+	@DisplayName("serve pruned block from block store")
+	void servePrunedBlockFromBlockStore(@TempDir Path dir) throws IOException {
+		BlockStore store = BlockStore.open(dir);
+		blockChain.setBlockStore(store);
+
+		Transaction tx = spendGenesisCoinbase(10);
+
+		Block first = new Block(genesisBlock.getHash(), address);
+		first.addTransaction(tx);
+		first.finalize();
+		assertTrue(blockChain.addBlock(first));
+
+		Block block = first;
+		for (int i = 0; i < BlockChain.CUT_OFF_AGE + 5; i++) {
+			block = new Block(block.getHash(), address);
+			block.finalize();
+			assertTrue(blockChain.addBlock(block));
+		}
+		store.close();
+
+		store = BlockStore.open(dir);
+		blockChain.setBlockStore(store);
+		Block stored = blockChain.getBlock(first.getHash());
+		assertArrayEquals(first.getHash(), stored.getHash());
+		assertArrayEquals(genesisBlock.getHash(), stored.getPrevBlockHash());
+		assertEquals(tx, stored.getTransaction(0));
+		assertEquals(BlockChain.CUT_OFF_AGE + 7, store.size());
+		store.close();
+	}
+
+	@Test
+	@DisplayName("accept child listed before its parent in the same batch")
+	void acceptChildBeforeParentInSameBatch() {
+		Transaction parent = spendGenesisCoinbase(10);
+		Transaction child = new Transaction();
+		child.addInput(parent.getHash(), 0);
+		child.addOutput(10, genesisAddress);
+		child.addSignature(getSignature(child, 0, secret), 0);
+		child.finalize();
+
+		DependencyTxHandler handler = new DependencyTxHandler(blockChain.getMaxHeightUTXOPool());
+		Transaction[] accepted = handler.handleTxs(new Transaction[] { child, parent });
+		assertArrayEquals(new Transaction[] { parent, child }, accepted);
+		UTXOPool utxoPool = handler.getUTXOPool();
+		assertFalse(utxoPool.contains(new UTXO(parent.getHash(), 0)));
+		assertTrue(utxoPool.contains(new UTXO(child.getHash(), 0)));
+	}
+
+	@Test
+	@DisplayName("accept one of two transactions spending the same output in the same batch")
+	void acceptOneOfDoubleSpendInSameBatch() {
+		Transaction first = spendGenesisCoinbase(10);
+		Transaction second = spendGenesisCoinbase(20);
+
+		DependencyTxHandler handler = new DependencyTxHandler(blockChain.getMaxHeightUTXOPool());
+		Transaction[] accepted = handler.handleTxs(new Transaction[] { first, second });
+		assertArrayEquals(new Transaction[] { first }, accepted);
+		UTXOPool utxoPool = handler.getUTXOPool();
+		assertTrue(utxoPool.contains(new UTXO(first.getHash(), 0)));
+		assertFalse(utxoPool.contains(new UTXO(second.getHash(), 0)));
+	}
+
+	@Test
+	@DisplayName("let high-fee child pay for low-fee parent in block template")
+	void childPaysForParentInBlockTemplate() {
+		Transaction source = fundingTransaction(2);
+		Transaction parent = spendOutput(source.getHash(), 0, 9.99, secret);
+		Transaction child = spendOutput(parent.getHash(), 0, 5, secret);
+		Transaction other = spendOutput(source.getHash(), 1, 8, secret);
+		int size = parent.getRawTx().length;
+
+		BlockTemplateBuilder builder = new BlockTemplateBuilder(fund(source), 2 * size);
+		Transaction[] txs = builder.build(new Transaction[] { child, other, parent });
+		assertArrayEquals(new Transaction[] { parent, child }, txs);
+	}
+
+	@Test
+	@DisplayName("select one side of a double spend in block template")
+	void selectOneSideOfDoubleSpendInBlockTemplate() {
+		Transaction source = fundingTransaction(1);
+		Transaction low = spendOutput(source.getHash(), 0, 9, secret);
+		Transaction high = spendOutput(source.getHash(), 0, 7, secret);
+
+		BlockTemplateBuilder builder = new BlockTemplateBuilder(fund(source), BlockHandler.MAX_BLOCK_SIZE);
+		Transaction[] txs = builder.build(new Transaction[] { low, high });
+		assertArrayEquals(new Transaction[] { high }, txs);
+	}
+
+	@Test
+	@DisplayName("respect size limit of block template")
+	void respectSizeLimitOfBlockTemplate() {
+		Transaction source = fundingTransaction(5);
+		Transaction[] candidates = new Transaction[5];
+		for (int i = 0; i < candidates.length; i++) {
+			candidates[i] = spendOutput(source.getHash(), i, 5 + i, secret);
+		}
+		int size = candidates[0].getRawTx().length;
+
+		BlockTemplateBuilder builder = new BlockTemplateBuilder(fund(source), 3 * size);
+		Transaction[] txs = builder.build(candidates);
+		assertArrayEquals(new Transaction[] { candidates[0], candidates[1], candidates[2] }, txs);
+		int total = 0;
+		for (Transaction tx : txs) {
+			total += tx.getRawTx().length;
+		}
+		assertTrue(total <= 3 * size);
+	}
+
+	@Test
+	@DisplayName("create block with pooled parent and child")
+	void createBlockWithPooledParentAndChild() {
+		Transaction parent = spendGenesisCoinbase(24.99);
+		Transaction child = spendOutput(parent.getHash(), 0, 5, secret);
+		blockChain.addTransaction(parent);
+		blockChain.addTransaction(child);
+
+		Block block = new BlockHandler(blockChain).createBlock(address);
+		assertNotNull(block);
+		assertEquals(2, block.getTransactions().size());
+		assertEquals(parent, block.getTransaction(0));
+		assertEquals(child, block.getTransaction(1));
+		assertArrayEquals(block.getHash(), blockChain.getMaxHeightBlock().getHash());
+	}
+
+	@Test
+	@DisplayName("evict lowest fee rate from pool beyond count limit")
+	void evictLowestFeeRateBeyondCountLimit() {
+		Transaction source = fundingTransaction(4);
+		Transaction[] txs = new Transaction[4];
+		for (int i = 0; i < txs.length; i++) {
+			txs[i] = spendOutput(source.getHash(), i, 5, secret);
+		}
+		TransactionPool txPool = new TransactionPool(2, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		assertTrue(txPool.addTransaction(txs[0], 3));
+		assertTrue(txPool.addTransaction(txs[1], 1));
+		assertTrue(txPool.addTransaction(txs[2], 2));
+		assertEquals(2, txPool.size());
+		assertNull(txPool.getTransaction(txs[1].getHash()));
+		assertFalse(txPool.addTransaction(txs[3], 0.5));
+		assertEquals(2, txPool.getEvictedCount());
+		assertEquals(txs[0], txPool.getTopTransactions(1).get(0));
+	}
+
+	@Test
+	@DisplayName("evict from pool beyond size limit")
+	void evictBeyondSizeLimit() {
+		Transaction source = fundingTransaction(3);
+		Transaction[] txs = new Transaction[3];
+		for (int i = 0; i < txs.length; i++) {
+			txs[i] = spendOutput(source.getHash(), i, 5, secret);
+		}
+		int size = txs[0].getRawTx().length;
+		TransactionPool txPool = new TransactionPool(Integer.MAX_VALUE, 3 * size - 1, Long.MAX_VALUE);
+
+		for (int i = 0; i < txs.length; i++) {
+			txPool.addTransaction(txs[i], i + 1);
+		}
+		assertEquals(2, txPool.size());
+		assertEquals(2 * size, txPool.getSize());
+		assertNull(txPool.getTransaction(txs[0].getHash()));
+	}
+
+	@Test
+	@DisplayName("evict descendants with their parent from pool")
+	void evictDescendantsWithParent() {
+		Transaction source = fundingTransaction(2);
+		Transaction parent = spendOutput(source.getHash(), 0, 9.99, secret);
+		Transaction child = spendOutput(parent.getHash(), 0, 5, secret);
+		Transaction other = spendOutput(source.getHash(), 1, 8, secret);
+		TransactionPool txPool = new TransactionPool(2, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		assertTrue(txPool.addTransaction(parent, 0.01));
+		assertTrue(txPool.addTransaction(child, 4.99));
+		assertTrue(txPool.addTransaction(other, 2));
+		assertEquals(1, txPool.size());
+		assertEquals(other, txPool.getTransactions().get(0));
+		assertEquals(2, txPool.getEvictedCount());
+	}
+
+	@Test
+	@DisplayName("expire old transactions with their descendants from pool")
+	void expireOldTransactionsWithDescendants() {
+		long[] clock = { 0 };
+		TransactionPool txPool = new TransactionPool(Integer.MAX_VALUE, Long.MAX_VALUE, 1000) {
+			@Override
+			protected long now() {
+				return clock[0];
+			}
+		};
+		Transaction source = fundingTransaction(3);
+		Transaction parent = spendOutput(source.getHash(), 0, 9, secret);
+		Transaction child = spendOutput(parent.getHash(), 0, 8, secret);
+		Transaction other = spendOutput(source.getHash(), 1, 9, secret);
+
+		txPool.addTransaction(parent, 1);
+		clock[0] = 500;
+		txPool.addTransaction(other, 1);
+		clock[0] = 900;
+		txPool.addTransaction(child, 1);
+
+		clock[0] = 1000;
+		assertTrue(txPool.addTransaction(spendOutput(source.getHash(), 2, 9, secret), 1));
+		assertEquals(2, txPool.size());
+		assertNull(txPool.getTransaction(parent.getHash()));
+		assertNull(txPool.getTransaction(child.getHash()));
+		assertEquals(other, txPool.getTransaction(other.getHash()));
+		assertEquals(2, txPool.getExpiredCount());
+	}
+
+	@Test
+	@DisplayName("reject transaction conflicting with pooled one")
+	void rejectTransactionConflictingWithPooledOne() {
+		Transaction source = fundingTransaction(1);
+		Transaction first = spendOutput(source.getHash(), 0, 9, secret);
+		Transaction second = spendOutput(source.getHash(), 0, 5, secret);
+		TransactionPool txPool = new TransactionPool();
+
+		assertTrue(txPool.addTransaction(first, 1));
+		assertFalse(txPool.addTransaction(second, 5));
+		assertEquals(1, txPool.size());
+		assertEquals(first, txPool.getSpender(new UTXO(source.getHash(), 0)));
+	}
+
+	@Test
+	@DisplayName("remove deep chain of pooled descendants")
+	void removeDeepChainOfDescendants() {
+		Transaction source = fundingTransaction(1);
+		TransactionPool txPool = new TransactionPool();
+		// the pool does not check signatures, so the chain is left unsigned
+		byte[] prevTxHash = source.getHash();
+		for (int i = 0; i < 10000; i++) {
+			Transaction tx = new Transaction();
+			tx.addInput(prevTxHash, 0);
+			tx.addOutput(10, address);
+			tx.finalize();
+			assertTrue(txPool.addTransaction(tx, 0));
+			prevTxHash = tx.getHash();
+		}
+
+		Transaction conflict = spendOutput(source.getHash(), 0, 5, secret);
+		assertEquals(10000, txPool.removeConflicts(conflict));
+		assertEquals(0, txPool.size());
+		assertEquals(0, txPool.getSize());
+	}
+
+	@Test
+	@DisplayName("hit cached signature")
+	void hitCachedSignature() {
+		SignatureCache cache = new SignatureCache(16);
+		Transaction tx = spendGenesisCoinbase(10);
+		byte[] rawOutputs = tx.getRawOutputs();
+		assertFalse(cache.contains(tx, 0, genesisAddress, rawOutputs));
+
+		cache.add(tx, 0, genesisAddress, rawOutputs);
+		assertTrue(cache.contains(tx, 0, genesisAddress, tx.getRawOutputs()));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	@DisplayName("miss cached signature that does not match the transaction")
+	void missMismatchedCachedSignature() {
+		SignatureCache cache = new SignatureCache(16);
+		Transaction tx = spendGenesisCoinbase(10);
+		cache.add(tx, 0, genesisAddress, tx.getRawOutputs());
+
+		assertFalse(cache.contains(tx, 0, address, tx.getRawOutputs()));
+		assertFalse(cache.contains(tx, 1, genesisAddress, tx.getRawOutputs()));
+
+		// same hash, since the transaction is not finalized again
+		byte[] signature = tx.getInput(0).signature;
+		tx.addSignature(getSignature(tx, 0, secret), 0);
+		assertFalse(cache.contains(tx, 0, genesisAddress, tx.getRawOutputs()));
+		tx.addSignature(signature, 0);
+
+		tx.getOutput(0).address = genesisAddress;
+		assertFalse(cache.contains(tx, 0, genesisAddress, tx.getRawOutputs()));
+	}
+
+	@Test
+	@DisplayName("evict cached signatures beyond capacity")
+	void evictCachedSignaturesBeyondCapacity() {
+		SignatureCache cache = new SignatureCache(16);
+		Transaction[] txs = new Transaction[64];
+		for (int i = 0; i < txs.length; i++) {
+			txs[i] = spendGenesisCoinbase(i);
+			cache.add(txs[i], 0, genesisAddress, txs[i].getRawOutputs());
+		}
+
+		assertTrue(cache.size() <= 16);
+		int hits = 0;
+		for (Transaction tx : txs) {
+			if (cache.contains(tx, 0, genesisAddress, tx.getRawOutputs()))
+				hits++;
+		}
+		assertEquals(cache.size(), hits);
+		Transaction last = txs[txs.length - 1];
+		assertTrue(cache.contains(last, 0, genesisAddress, last.getRawOutputs()));
+	}
+
+	/** @return a signed transaction paying {@code value} of the genesis coinbase to {@code address} */
+	private Transaction spendGenesisCoinbase(double value) {
+		return spendOutput(genesisBlock.getCoinbase().getHash(), 0, value, genesisSecret);
+	}
+
+	/** @return a transaction spending the given output, signed with {@code secret}, paying {@code value} to {@code address} */
+	private Transaction spendOutput(byte[] prevTxHash, int outputIndex, double value, PrivateKey secret) {
+		Transaction tx = new Transaction();
+		tx.addInput(prevTxHash, outputIndex);
+		tx.addOutput(value, address);
+		tx.addSignature(getSignature(tx, 0, secret), 0);
+		tx.finalize();
+		return tx;
+	}
+
+	/** @return a finalized transaction with {@code count} outputs of 10 to {@code address} */
+	private Transaction fundingTransaction(int count) {
+		Transaction tx = new Transaction();
+		for (int i = 0; i < count; i++) {
+			tx.addOutput(10, address);
+		}
+		tx.finalize();
+		return tx;
+	}
+
+	/** @return a UTXO pool holding the outputs of {@code source} */
+	private static UTXOPool fund(Transaction source) {
+		UTXOPool utxoPool = new UTXOPool();
+		for (int i = 0; i < source.numOutputs(); i++) {
+			utxoPool.addUTXO(new UTXO(source.getHash(), i), source.getOutput(i));
+		}
+		return utxoPool;
+	}
+
 	private byte[] getSignature(Transaction tx, int index, PrivateKey secret) {
 		try {
 			Signature sign = Signature.getInstance("SHA256withRSA");
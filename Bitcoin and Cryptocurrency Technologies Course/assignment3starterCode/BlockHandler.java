@@ -1,7 +1,15 @@
 
 import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class BlockHandler {
+    /** bytes of transactions a created block holds at most */
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+
     private BlockChain blockChain;
 
     /** assume blockChain has the genesis block */
@@ -27,9 +35,10 @@ public class BlockHandler {
         Block current = new Block(parentHash, myAddress);
         UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
+        BlockTemplateBuilder builder = new BlockTemplateBuilder(uPool, MAX_BLOCK_SIZE);
+        // leave room for candidates that turn out invalid or conflicting
+        Transaction[] txs = withAncestors(txPool, txPool.getTopTransactions(2 * MAX_BLOCK_SIZE));
+        Transaction[] rTxs = builder.build(txs);
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
@@ -40,6 +49,25 @@ public class BlockHandler {
             return null;
     }
 
+    // adds the pooled ancestors of txs, which they may need to pay for
+    private static Transaction[] withAncestors(TransactionPool txPool, List<Transaction> txs) {
+        Set<ByteArrayWrapper> seen = new HashSet<ByteArrayWrapper>();
+        List<Transaction> result = new ArrayList<Transaction>();
+        ArrayDeque<Transaction> queue = new ArrayDeque<Transaction>(txs);
+        while (!queue.isEmpty()) {
+            Transaction tx = queue.poll();
+            if (!seen.add(new ByteArrayWrapper(tx.getHash())))
+                continue;
+            result.add(tx);
+            for (Transaction.Input txIn : tx.getInputs()) {
+                Transaction parent = txIn.prevTxHash == null ? null : txPool.getTransaction(txIn.prevTxHash);
+                if (parent != null)
+                    queue.add(parent);
+            }
+        }
+        return result.toArray(new Transaction[0]);
+    }
+
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
         blockChain.addTransaction(tx);
@@ -0,0 +1,446 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of blocks on disk, so blocks pruned from the {@link BlockChain} can still be
+ * served by hash and a chain can resume from its tip. Blocks are appended with their height as
+ * checksummed records to segment files of at most {@link #SEGMENT_SIZE} bytes and located
+ * through a memory-mapped open-addressing index from block hash to (segment, offset). Neither
+ * blocks nor the index are kept on the heap.
+ *
+ * <p>
+ * Only finalized blocks, whose hash is {@link #HASH_LENGTH} bytes, can be stored. Each record is
+ * forced to disk before it is indexed, so the index never points past what survived a crash, and
+ * its index slot before the header marks it as indexed, so recovery never skips a record whose
+ * slot was lost. A lookup only returns a record carrying the requested hash.
+ */
+public class BlockStore implements Closeable {
+
+    public static final int HASH_LENGTH = 32;
+    public static final long SEGMENT_SIZE = 128L << 20;
+
+    private static final String SEGMENT_FILE = "blocks-%05d.dat";
+    private static final String INDEX_FILE = "blocks.idx";
+    private static final String NEXT_INDEX_FILE = "blocks.idx.next";
+
+    // index header layout
+    private static final long MAGIC = 0x424c4b4944580001L;
+    private static final int H_MAGIC = 0;
+    private static final int H_CAPACITY = 8;
+    private static final int H_SIZE = 12;
+    private static final int H_END_SEGMENT = 16;
+    private static final int H_END_OFFSET = 20;
+    private static final int HEADER_SIZE = 32;
+
+    // index slot layout, the segment is stored plus one so zero marks an empty slot
+    private static final int S_SEGMENT = 0;
+    private static final int S_OFFSET = 4;
+    private static final int S_HASH = 12;
+    private static final int SLOT_SIZE = S_HASH + HASH_LENGTH;
+
+    private static final int RECORD_HEADER = 8;
+
+    private Path dir;
+    private ArrayList<FileChannel> segments = new ArrayList<FileChannel>();
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int size;
+    private KeyFactory keyFactory;
+
+    private BlockStore(Path dir) throws IOException {
+        this.dir = dir;
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Opens the store in {@code dir}, creating it if needed. Records appended after the last
+     * indexed one, e.g. before a crash, are indexed again.
+     */
+    public static BlockStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        BlockStore store = new BlockStore(dir);
+        for (int i = 0; Files.exists(store.segmentPath(i)); i++)
+            store.segments.add(FileChannel.open(store.segmentPath(i), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        if (store.segments.isEmpty())
+            store.segments.add(FileChannel.open(store.segmentPath(0), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+        store.openIndex();
+        store.recover();
+        return store;
+    }
+
+    /** @return the number of stored blocks */
+    public int size() {
+        return size;
+    }
+
+    /** @return true if the block with hash {@code hash} is stored */
+    public boolean contains(byte[] hash) {
+        return hash.length == HASH_LENGTH && find(hash) >= 0;
+    }
+
+    /**
+     * Appends {@code block}, at {@code height} in its chain, unless a block with its hash is already
+     * stored
+     *
+     * @throws IllegalArgumentException if the block has not been finalized
+     */
+    public void put(Block block, int height) throws IOException {
+        byte[] hash = block.getHash();
+        if (hash == null || hash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("block must be finalized");
+        if (find(hash) >= 0)
+            return;
+
+        ByteBuffer record = encode(block, height);
+        int segment = segments.size() - 1;
+        FileChannel channel = segments.get(segment);
+        if (channel.size() > 0 && channel.size() + record.limit() > SEGMENT_SIZE) {
+            segment++;
+            channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            segments.add(channel);
+        }
+        long offset = channel.size();
+        while (record.hasRemaining())
+            channel.write(record, offset + record.position());
+        channel.force(false);
+
+        advance(insert(hash, segment, offset), segment, offset + record.limit());
+    }
+
+    /** @return the block with hash {@code hash}, or null if it is not stored */
+    public Block get(byte[] hash) throws IOException {
+        ByteBuffer body = readRecord(hash);
+        if (body == null)
+            return null;
+        return decode(body);
+    }
+
+    /** @return the height stored with the block with hash {@code hash}, or -1 if it is not stored */
+    public int getHeight(byte[] hash) throws IOException {
+        ByteBuffer body = readRecord(hash);
+        if (body == null)
+            return -1;
+        return body.getInt(HASH_LENGTH);
+    }
+
+    /** Forces appended blocks and the index to disk */
+    public void flush() throws IOException {
+        for (FileChannel channel : segments)
+            channel.force(false);
+        index.force();
+    }
+
+    public void close() throws IOException {
+        flush();
+        for (FileChannel channel : segments)
+            channel.close();
+        indexChannel.close();
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format(SEGMENT_FILE, segment));
+    }
+
+    private void openIndex() throws IOException {
+        Path path = dir.resolve(INDEX_FILE);
+        int capacity = 1024;
+        boolean exists = Files.exists(path) && Files.size(path) >= HEADER_SIZE;
+        if (exists) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header) >= 0)
+                    ;
+                if (header.getLong(H_MAGIC) != MAGIC)
+                    throw new IOException("not a block index: " + path);
+                capacity = header.getInt(H_CAPACITY);
+            }
+        }
+        mapIndex(path, capacity);
+        if (exists) {
+            size = index.getInt(H_SIZE);
+        } else {
+            index.putLong(H_MAGIC, MAGIC);
+            index.putInt(H_CAPACITY, capacity);
+        }
+    }
+
+    private void mapIndex(Path path, int capacity) throws IOException {
+        indexChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        this.capacity = capacity;
+    }
+
+    // indexes complete records written after the last indexed one
+    private void recover() throws IOException {
+        int segment = index.getInt(H_END_SEGMENT);
+        long offset = index.getInt(H_END_OFFSET);
+        while (segment < segments.size()) {
+            FileChannel channel = segments.get(segment);
+            ByteBuffer body;
+            while ((body = read(channel, offset)) != null) {
+                byte[] hash = new byte[HASH_LENGTH];
+                body.get(hash);
+                int slot = find(hash) < 0 ? insert(hash, segment, offset) : -1;
+                offset += RECORD_HEADER + body.limit();
+                advance(slot, segment, offset);
+            }
+            // drop a torn last record
+            if (segment == segments.size() - 1)
+                channel.truncate(offset);
+            segment++;
+            offset = 0;
+        }
+    }
+
+    // returns the body of the record indexed for hash, or null if there is none
+    private ByteBuffer readRecord(byte[] hash) throws IOException {
+        if (hash.length != HASH_LENGTH)
+            return null;
+        int slot = find(hash);
+        if (slot < 0)
+            return null;
+        int o = HEADER_SIZE + slot * SLOT_SIZE;
+        ByteBuffer body = read(segments.get(index.getInt(o + S_SEGMENT) - 1), index.getLong(o + S_OFFSET));
+        // the offset may have been reused by another block after a lost write
+        if (body == null || !Arrays.equals(body.array(), 0, HASH_LENGTH, hash, 0, HASH_LENGTH))
+            return null;
+        return body;
+    }
+
+    // returns the record body, or null if it is incomplete or corrupt
+    private ByteBuffer read(FileChannel channel, long offset) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER);
+        if (!readFully(channel, head, offset))
+            return null;
+        int length = head.getInt(0);
+        if (length < HASH_LENGTH || offset + RECORD_HEADER + length > channel.size())
+            return null;
+        ByteBuffer body = ByteBuffer.allocate(length);
+        if (!readFully(channel, body, offset + RECORD_HEADER))
+            return null;
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+        if ((int) crc.getValue() != head.getInt(4))
+            return null;
+        body.flip();
+        return body;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int find(byte[] hash) {
+        int mask = capacity - 1;
+        int slot = spread(Arrays.hashCode(hash)) & mask;
+        while (true) {
+            int o = HEADER_SIZE + slot * SLOT_SIZE;
+            if (index.getInt(o + S_SEGMENT) == 0)
+                return -1;
+            if (hashEquals(o, hash))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // returns the position of the new slot in the index, the header is left to the caller
+    private int insert(byte[] hash, int segment, long offset) throws IOException {
+        if ((size + 1) * 2 > capacity)
+            grow();
+        int mask = capacity - 1;
+        int slot = spread(Arrays.hashCode(hash)) & mask;
+        while (index.getInt(HEADER_SIZE + slot * SLOT_SIZE + S_SEGMENT) != 0)
+            slot = (slot + 1) & mask;
+        int o = HEADER_SIZE + slot * SLOT_SIZE;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            index.put(o + S_HASH + i, hash[i]);
+        index.putLong(o + S_OFFSET, offset);
+        index.putInt(o + S_SEGMENT, segment + 1);
+        size++;
+        return o;
+    }
+
+    /**
+     * Marks the records up to {@code end} in {@code segment} as indexed, once the slot at
+     * {@code slot}, if not negative, is on disk. Recovery resumes from the header, so the header
+     * must not reach the disk ahead of the slot
+     */
+    private void advance(int slot, int segment, long end) {
+        if (slot >= 0)
+            index.force(slot, SLOT_SIZE);
+        index.putInt(H_SIZE, size);
+        index.putInt(H_END_SEGMENT, segment);
+        index.putInt(H_END_OFFSET, (int) end);
+    }
+
+    // rebuilds the index at twice the capacity in a new file and renames it into place
+    private void grow() throws IOException {
+        MappedByteBuffer oldIndex = index;
+        FileChannel oldChannel = indexChannel;
+        int oldCapacity = capacity;
+        Path next = dir.resolve(NEXT_INDEX_FILE);
+        Files.deleteIfExists(next);
+        mapIndex(next, oldCapacity * 2);
+        index.putLong(H_MAGIC, MAGIC);
+        index.putInt(H_CAPACITY, capacity);
+        index.putInt(H_END_SEGMENT, oldIndex.getInt(H_END_SEGMENT));
+        index.putInt(H_END_OFFSET, oldIndex.getInt(H_END_OFFSET));
+        size = 0;
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int o = HEADER_SIZE + slot * SLOT_SIZE;
+            int segment = oldIndex.getInt(o + S_SEGMENT);
+            if (segment == 0)
+                continue;
+            for (int i = 0; i < HASH_LENGTH; i++)
+                hash[i] = oldIndex.get(o + S_HASH + i);
+            insert(hash, segment - 1, oldIndex.getLong(o + S_OFFSET));
+        }
+        index.putInt(H_SIZE, size);
+        index.force();
+        Files.move(next, dir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        oldChannel.close();
+    }
+
+    private boolean hashEquals(int o, byte[] hash) {
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (index.get(o + S_HASH + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    // record: length, crc, then block hash, height, previous hash, coinbase address, transactions
+    private ByteBuffer encode(Block block, int height) {
+        ArrayList<byte[]> fields = new ArrayList<byte[]>();
+        byte[] prevHash = block.getPrevBlockHash();
+        byte[] coinbaseAddress = block.getCoinbase().getOutput(0).address.getEncoded();
+        int length = HASH_LENGTH + 4 + bytesLength(prevHash) + bytesLength(coinbaseAddress) + 4;
+        for (Transaction tx : block.getTransactions()) {
+            length += bytesLength(tx.getHash()) + 4 + 4;
+            for (Transaction.Input in : tx.getInputs())
+                length += bytesLength(in.prevTxHash) + 4 + bytesLength(in.signature);
+            for (Transaction.Output op : tx.getOutputs()) {
+                byte[] address = op.address.getEncoded();
+                fields.add(address);
+                length += 8 + bytesLength(address);
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        record.putInt(length);
+        record.putInt(0);
+        record.put(block.getHash());
+        record.putInt(height);
+        putBytes(record, prevHash);
+        putBytes(record, coinbaseAddress);
+        record.putInt(block.getTransactions().size());
+        int field = 0;
+        for (Transaction tx : block.getTransactions()) {
+            putBytes(record, tx.getHash());
+            record.putInt(tx.numInputs());
+            for (Transaction.Input in : tx.getInputs()) {
+                putBytes(record, in.prevTxHash);
+                record.putInt(in.outputIndex);
+                putBytes(record, in.signature);
+            }
+            record.putInt(tx.numOutputs());
+            for (Transaction.Output op : tx.getOutputs()) {
+                record.putDouble(op.value);
+                putBytes(record, fields.get(field++));
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private Block decode(ByteBuffer body) throws IOException {
+        body.position(HASH_LENGTH + 4);
+        byte[] prevHash = getBytes(body);
+        Block block = new Block(prevHash, decodeAddress(getBytes(body)));
+        int numTxs = body.getInt();
+        for (int t = 0; t < numTxs; t++) {
+            Transaction tx = new Transaction();
+            byte[] txHash = getBytes(body);
+            int numInputs = body.getInt();
+            for (int i = 0; i < numInputs; i++) {
+                tx.addInput(getBytes(body), body.getInt());
+                tx.addSignature(getBytes(body), i);
+            }
+            int numOutputs = body.getInt();
+            for (int i = 0; i < numOutputs; i++) {
+                double value = body.getDouble();
+                tx.addOutput(value, decodeAddress(getBytes(body)));
+            }
+            tx.setHash(txHash);
+            block.addTransaction(tx);
+        }
+        block.finalize();
+        return block;
+    }
+
+    private PublicKey decodeAddress(byte[] encoded) throws IOException {
+        try {
+            return keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int bytesLength(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    // length prefixed, -1 for null
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
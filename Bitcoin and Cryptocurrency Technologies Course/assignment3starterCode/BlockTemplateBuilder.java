@@ -0,0 +1,263 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Selects the transactions of a new block so as to maximize its fees. Each transaction is scored
+ * together with its unconfirmed ancestors, so a high-fee child pays for a low-fee parent, and the
+ * package with the best fee rate (fees per byte of {@link Transaction#getRawTx()}) is added next,
+ * as long as it fits into the block. Once a transaction is added, all others claiming one of its
+ * inputs are dropped along with their descendants.
+ *
+ * <p>
+ * Fees, sizes and validity are computed once per transaction, against the UTXO pool extended by
+ * the outputs of all candidates.
+ */
+public class BlockTemplateBuilder {
+
+    private final UTXOPool utxoPool;
+    private final int maxSize;
+
+    private Transaction[] txs;
+    private double[] fees;
+    private int[] sizes;
+    private List<List<Integer>> children;
+    private BitSet[] ancestors;
+    /** position of each transaction in a topological order of the candidates */
+    private int[] order;
+    private boolean[] selected;
+    private boolean[] excluded;
+    private int[] versions;
+    /** transactions claiming each output */
+    private Map<UTXO, List<Integer>> claims;
+
+    /** Creates a builder for blocks over {@code utxoPool} of at most {@code maxSize} bytes of transactions */
+    public BlockTemplateBuilder(UTXOPool utxoPool, int maxSize) {
+        this.utxoPool = utxoPool;
+        this.maxSize = maxSize;
+    }
+
+    /** @return the selected transactions among {@code candidates}, parents first */
+    public Transaction[] build(Transaction[] candidates) {
+        index(candidates);
+        int n = txs.length;
+
+        // validate as if all ancestors were confirmed
+        UTXOPool view = new UTXOPool(new UTXOOverlay(utxoPool));
+        for (Transaction tx : txs) {
+            for (int i = 0; i < tx.numOutputs(); i++)
+                view.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        TxHandler handler = new TxHandler(view);
+        Set<Transaction> verified = handler.verifySignatures(txs);
+        fees = new double[n];
+        sizes = new int[n];
+        excluded = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            excluded[i] = !handler.isValidTx(txs[i], verified);
+            if (!excluded[i]) {
+                fees[i] = handler.fee(txs[i]);
+                sizes[i] = txs[i].getRawTx().length;
+            }
+        }
+
+        link();
+
+        selected = new boolean[n];
+        versions = new int[n];
+        PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+        for (int i = 0; i < n; i++) {
+            if (!excluded[i])
+                queue.add(score(i));
+        }
+
+        List<Transaction> block = new ArrayList<Transaction>();
+        int remaining = maxSize;
+        while (!queue.isEmpty()) {
+            Entry entry = queue.poll();
+            int i = entry.tx;
+            if (selected[i] || excluded[i] || entry.version != versions[i] || entry.size > remaining)
+                continue;
+
+            List<Integer> pkg = new ArrayList<Integer>();
+            for (int a = ancestors[i].nextSetBit(0); a >= 0; a = ancestors[i].nextSetBit(a + 1)) {
+                if (!selected[a])
+                    pkg.add(a);
+            }
+            pkg.add(i);
+            pkg.sort((a, b) -> Integer.compare(order[a], order[b]));
+            if (conflicting(pkg)) {
+                exclude(i);
+                continue;
+            }
+
+            for (int t : pkg) {
+                selected[t] = true;
+                block.add(txs[t]);
+                for (Transaction.Input txIn : txs[t].getInputs()) {
+                    for (int other : claims.get(new UTXO(txIn.prevTxHash, txIn.outputIndex))) {
+                        if (other != t)
+                            exclude(other);
+                    }
+                }
+            }
+            remaining -= entry.size;
+
+            // descendants no longer pay for the selected ancestors
+            for (int d : descendants(pkg)) {
+                versions[d]++;
+                queue.add(score(d));
+            }
+        }
+        return block.toArray(new Transaction[0]);
+    }
+
+    // deduplicates candidates by hash, those without a hash cannot be referenced and are skipped
+    private void index(Transaction[] candidates) {
+        Map<ByteArrayWrapper, Transaction> byHash = new HashMap<ByteArrayWrapper, Transaction>();
+        List<Transaction> unique = new ArrayList<Transaction>();
+        for (Transaction tx : candidates) {
+            if (tx.getHash() != null && byHash.putIfAbsent(new ByteArrayWrapper(tx.getHash()), tx) == null)
+                unique.add(tx);
+        }
+        txs = unique.toArray(new Transaction[0]);
+    }
+
+    // builds the spend graph, a topological order and the ancestor sets
+    private void link() {
+        int n = txs.length;
+        Map<ByteArrayWrapper, Integer> indexByHash = new HashMap<ByteArrayWrapper, Integer>();
+        for (int i = 0; i < n; i++)
+            indexByHash.put(new ByteArrayWrapper(txs[i].getHash()), i);
+
+        children = new ArrayList<List<Integer>>();
+        for (int i = 0; i < n; i++)
+            children.add(new ArrayList<Integer>());
+        List<List<Integer>> parents = new ArrayList<List<Integer>>();
+        int[] parentCounts = new int[n];
+        claims = new HashMap<UTXO, List<Integer>>();
+        for (int i = 0; i < n; i++) {
+            List<Integer> txParents = new ArrayList<Integer>();
+            for (Transaction.Input txIn : txs[i].getInputs()) {
+                if (txIn.prevTxHash == null)
+                    continue;
+                claims.computeIfAbsent(new UTXO(txIn.prevTxHash, txIn.outputIndex), u -> new ArrayList<Integer>())
+                        .add(i);
+                Integer parent = indexByHash.get(new ByteArrayWrapper(txIn.prevTxHash));
+                if (parent != null && parent != i && !txParents.contains(parent)) {
+                    txParents.add(parent);
+                    children.get(parent).add(i);
+                    parentCounts[i]++;
+                }
+            }
+            parents.add(txParents);
+        }
+
+        // transactions left unordered are on a cycle and can never be mined
+        order = new int[n];
+        ancestors = new BitSet[n];
+        boolean[] ordered = new boolean[n];
+        ArrayDeque<Integer> ready = new ArrayDeque<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (parentCounts[i] == 0)
+                ready.add(i);
+        }
+        int position = 0;
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            ordered[i] = true;
+            order[i] = position++;
+            ancestors[i] = new BitSet(n);
+            for (int p : parents.get(i)) {
+                ancestors[i].or(ancestors[p]);
+                ancestors[i].set(p);
+                excluded[i] |= excluded[p];
+            }
+            for (int child : children.get(i)) {
+                if (--parentCounts[child] == 0)
+                    ready.add(child);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!ordered[i]) {
+                excluded[i] = true;
+                ancestors[i] = new BitSet(n);
+            }
+        }
+    }
+
+    private Entry score(int i) {
+        double fee = fees[i];
+        int size = sizes[i];
+        for (int a = ancestors[i].nextSetBit(0); a >= 0; a = ancestors[i].nextSetBit(a + 1)) {
+            if (!selected[a]) {
+                fee += fees[a];
+                size += sizes[a];
+            }
+        }
+        return new Entry(i, fee, size, versions[i]);
+    }
+
+    // true if two transactions of the package claim the same output
+    private boolean conflicting(List<Integer> pkg) {
+        List<UTXO> claimed = new ArrayList<UTXO>();
+        for (int t : pkg) {
+            for (Transaction.Input txIn : txs[t].getInputs())
+                claimed.add(new UTXO(txIn.prevTxHash, txIn.outputIndex));
+        }
+        return claimed.size() != new HashSet<UTXO>(claimed).size();
+    }
+
+    private void exclude(int i) {
+        if (excluded[i] || selected[i])
+            return;
+        excluded[i] = true;
+        for (int d : descendants(Collections.singletonList(i)))
+            excluded[d] = true;
+    }
+
+    // unselected descendants of txs that are not excluded
+    private List<Integer> descendants(List<Integer> roots) {
+        List<Integer> result = new ArrayList<Integer>();
+        BitSet seen = new BitSet(txs.length);
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>(roots);
+        while (!queue.isEmpty()) {
+            for (int child : children.get(queue.poll())) {
+                if (seen.get(child) || selected[child])
+                    continue;
+                seen.set(child);
+                queue.add(child);
+                if (!excluded[child])
+                    result.add(child);
+            }
+        }
+        return result;
+    }
+
+    /** A transaction scored with its unselected ancestors, best fee rate first */
+    private static class Entry implements Comparable<Entry> {
+        final int tx;
+        final double fee;
+        final int size;
+        final int version;
+
+        Entry(int tx, double fee, int size, int version) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = size;
+            this.version = version;
+        }
+
+        public int compareTo(Entry other) {
+            int c = Double.compare(other.fee * size, fee * other.size);
+            return c != 0 ? c : Integer.compare(tx, other.tx);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.function.BiConsumer;
+
+/**
+ * Journal of the UTXO changes a block made on top of its parent's pool, kept in the order they
+ * were applied so they can be replayed forward or rolled back.
+ */
+public class BlockUndo {
+
+    private ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+    private ArrayList<Transaction.Output> outputs = new ArrayList<Transaction.Output>();
+    /** bit {@code i} is set if entry {@code i} created a UTXO, clear if it spent one */
+    private BitSet created = new BitSet();
+    /**
+     * output a created UTXO replaced, by entry, or null if it was absent. Coinbases paying the
+     * same address share a hash, so a block can recreate a UTXO that is still unspent
+     */
+    private ArrayList<Transaction.Output> replaced = new ArrayList<Transaction.Output>();
+
+    /** Removes the outputs claimed by {@code tx} from {@code utxoPool}, recording what was spent */
+    public void spendInputs(UTXOPool utxoPool, Transaction tx) {
+        for (Transaction.Input txIn : tx.getInputs()) {
+            UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
+            Transaction.Output txOut = utxoPool.getTxOutput(utxo);
+            if (txOut == null)
+                continue;
+            utxoPool.removeUTXO(utxo);
+            utxos.add(utxo);
+            outputs.add(txOut);
+            replaced.add(null);
+        }
+    }
+
+    /** Adds the outputs of {@code tx} to {@code utxoPool}, recording what was created */
+    public void createOutputs(UTXOPool utxoPool, Transaction tx) {
+        int index = 0;
+        for (Transaction.Output txOut : tx.getOutputs()) {
+            UTXO utxo = new UTXO(tx.getHash(), index);
+            Transaction.Output previous = utxoPool.getTxOutput(utxo);
+            utxoPool.addUTXO(utxo, txOut);
+            created.set(utxos.size());
+            utxos.add(utxo);
+            outputs.add(txOut);
+            replaced.add(previous);
+            index++;
+        }
+    }
+
+    /** Replays the recorded changes on {@code utxoPool}, which must be the parent's state */
+    public void apply(UTXOPool utxoPool) {
+        for (int i = 0; i < utxos.size(); i++) {
+            if (created.get(i))
+                utxoPool.addUTXO(utxos.get(i), outputs.get(i));
+            else
+                utxoPool.removeUTXO(utxos.get(i));
+        }
+    }
+
+    /** Rolls the recorded changes back on {@code utxoPool}, restoring the parent's state */
+    public void revert(UTXOPool utxoPool) {
+        for (int i = utxos.size() - 1; i >= 0; i--) {
+            if (created.get(i) && replaced.get(i) != null)
+                utxoPool.addUTXO(utxos.get(i), replaced.get(i));
+            else if (created.get(i))
+                utxoPool.removeUTXO(utxos.get(i));
+            else
+                utxoPool.addUTXO(utxos.get(i), outputs.get(i));
+        }
+    }
+
+    /** Calls {@code action} for the UTXO and output of every recorded change, in the order applied */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (int i = 0; i < utxos.size(); i++)
+            action.accept(utxos.get(i), outputs.get(i));
+    }
+
+    /** @return the number of recorded changes */
+    public int size() {
+        return utxos.size();
+    }
+}
@@ -1,4 +1,5 @@
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -6,6 +7,37 @@ import java.security.SignatureException;
 
 public class Crypto {
 
+    // JCA lookups go through synchronized provider tables, so each thread keeps its own instances
+    private static final ThreadLocal<Signature> VERIFIER = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance("SHA256withRSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * @return this thread's SHA256withRSA signature object, to be initialized by the caller. It
+     *         must not be shared with other threads or held across calls to this class
+     */
+    public static Signature getVerifier() {
+        return VERIFIER.get();
+    }
+
+    /** @return this thread's SHA-256 digest, reset and ready for use under the same rules */
+    public static MessageDigest getDigest() {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        return md;
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,16 +45,13 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+        Signature sig = getVerifier();
         try {
             sig.initVerify(pubKey);
         } catch (InvalidKeyException e) {
             e.printStackTrace();
+            // the per-thread verifier still holds the previous caller's key
+            return false;
         }
         try {
             sig.update(message);
@@ -33,4 +62,25 @@ public class Crypto {
         return false;
 
     }
+
+    /**
+     * @return true if {@code signature} is a valid digital signature of the data to sign for input
+     *         {@code index} of {@code tx}, whose outputs serialize to {@code rawOutputs}, under the
+     *         key {@code pubKey}. The data is streamed into the verifier rather than built with
+     *         {@link Transaction#getRawDataToSign(int)}
+     */
+    public static boolean verifySignature(PublicKey pubKey, Transaction tx, int index, byte[] rawOutputs,
+            byte[] signature) {
+        try {
+            Signature sig = getVerifier();
+            sig.initVerify(pubKey);
+            tx.updateDataToSign(sig, index, rawOutputs);
+            return sig.verify(signature);
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
 }
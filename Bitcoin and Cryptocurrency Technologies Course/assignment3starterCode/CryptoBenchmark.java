@@ -0,0 +1,85 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares looking up a fresh JCA instance per call with the per-thread instances of
+ * {@link Crypto}, for hashing a transaction and verifying one of its signatures.
+ *
+ * <p>
+ * Usage: {@code java CryptoBenchmark [threads] [iterations]}
+ */
+public class CryptoBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addOutput(10, keyPair.getPublic());
+        tx.addOutput(15, keyPair.getPublic());
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(tx.getRawDataToSign(0));
+        byte[] signature = signer.sign();
+        tx.addSignature(signature, 0);
+        tx.finalize();
+        byte[] rawTx = tx.getRawTx();
+        byte[] message = tx.getRawDataToSign(0);
+
+        Task getInstanceDigest = () -> MessageDigest.getInstance("SHA-256").digest(rawTx)[0] != 0;
+        Task cachedDigest = () -> Crypto.getDigest().digest(rawTx)[0] != 0;
+        Task getInstanceVerify = () -> {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initVerify(keyPair.getPublic());
+            sig.update(message);
+            return sig.verify(signature);
+        };
+        Task cachedVerify = () -> Crypto.verifySignature(keyPair.getPublic(), message, signature);
+
+        System.out.println(threads + " threads, " + iterations + " iterations per thread");
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            boolean print = round == 1;
+            run("digest, getInstance per call", getInstanceDigest, threads, iterations, print);
+            run("digest, per-thread instance", cachedDigest, threads, iterations, print);
+            run("verify, getInstance per call", getInstanceVerify, threads, iterations / 10, print);
+            run("verify, per-thread instance", cachedVerify, threads, iterations / 10, print);
+        }
+    }
+
+    private static void run(String name, Task task, int threads, int iterations, boolean print) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Boolean>> workers = new ArrayList<Callable<Boolean>>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(() -> {
+                boolean result = true;
+                for (int i = 0; i < iterations; i++)
+                    result &= task.run();
+                return result;
+            });
+        }
+        long start = System.nanoTime();
+        for (Future<Boolean> future : executor.invokeAll(workers))
+            future.get();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        // wall time per call as seen by each thread, so contention shows up as a slowdown
+        if (print)
+            System.out.printf("%-30s %10.0f ns/op%n", name, (double) elapsed / iterations);
+    }
+
+    private interface Task {
+        boolean run() throws GeneralSecurityException;
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Handler that also accepts transactions spending outputs of other transactions
+ * in the same batch, wherever they appear in it. The batch is split into
+ * independent components, transactions linked by an intra-batch spend or by
+ * claiming the same output, which are validated in parallel, each in
+ * topological order on its own overlay of the UTXO pool. Accepted transactions
+ * are returned parents first, and their outputs are added to the pool.
+ */
+public class DependencyTxHandler extends TxHandler {
+
+	public DependencyTxHandler(UTXOPool utxoPool) {
+		super(utxoPool);
+	}
+
+	@Override
+	public Transaction[] handleTxs(Transaction[] txs) {
+		Transaction[] sorted = getSortedTransactions(txs);
+		Set<Transaction> verified = verifySignatures(sorted);
+
+		int n = sorted.length;
+		int[] roots = new int[n];
+		for (int i = 0; i < n; i++) {
+			roots[i] = i;
+		}
+		Map<ByteArrayWrapper, Integer> indexByHash = new HashMap<ByteArrayWrapper, Integer>();
+		for (int i = 0; i < n; i++) {
+			if (sorted[i].getHash() != null) {
+				indexByHash.putIfAbsent(new ByteArrayWrapper(sorted[i].getHash()), i);
+			}
+		}
+
+		// spend graph, edges go from a transaction to those spending its outputs
+		List<List<Integer>> children = new ArrayList<List<Integer>>();
+		// number of unprocessed in-batch parents
+		int[] parentCounts = new int[n];
+		Map<UTXO, Integer> claims = new HashMap<UTXO, Integer>();
+		for (int i = 0; i < n; i++) {
+			children.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < n; i++) {
+			for (Transaction.Input txIn : sorted[i].getInputs()) {
+				if (txIn.prevTxHash == null) {
+					continue;
+				}
+				Integer parent = indexByHash.get(new ByteArrayWrapper(txIn.prevTxHash));
+				if (parent != null && parent != i) {
+					children.get(parent).add(i);
+					parentCounts[i]++;
+					union(roots, parent, i);
+				}
+				Integer claimant = claims.putIfAbsent(new UTXO(txIn.prevTxHash, txIn.outputIndex), i);
+				if (claimant != null) {
+					union(roots, claimant, i);
+				}
+			}
+		}
+
+		// components in order of their first transaction
+		Map<Integer, List<Integer>> byRoot = new HashMap<Integer, List<Integer>>();
+		List<List<Integer>> components = new ArrayList<List<Integer>>();
+		for (int i = 0; i < n; i++) {
+			List<Integer> component = byRoot.get(find(roots, i));
+			if (component == null) {
+				component = new ArrayList<Integer>();
+				byRoot.put(find(roots, i), component);
+				components.add(component);
+			}
+			component.add(i);
+		}
+
+		// components touch disjoint entries of parentCounts, so they can run concurrently
+		List<List<Integer>> accepted = components.parallelStream()
+				.map(component -> handleComponent(sorted, component, children, parentCounts, verified))
+				.collect(Collectors.toList());
+
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for (List<Integer> component : accepted) {
+			for (int i : component) {
+				Transaction tx = sorted[i];
+				for (Transaction.Input txIn : tx.getInputs()) {
+					utxoPool.removeUTXO(new UTXO(txIn.prevTxHash, txIn.outputIndex));
+				}
+				addOutputs(utxoPool, tx);
+				transactions.add(tx);
+			}
+		}
+		return transactions.toArray(new Transaction[0]);
+	}
+
+	/**
+	 * Validates the transactions of {@code component} on an overlay of the pool,
+	 * taking them in topological order and otherwise in batch order.
+	 *
+	 * @return the indices of the accepted transactions, parents first
+	 */
+	private List<Integer> handleComponent(Transaction[] txs, List<Integer> component, List<List<Integer>> children,
+			int[] parentCounts, Set<Transaction> verified) {
+		TxHandler handler = new TxHandler(new UTXOPool(new UTXOOverlay(utxoPool)));
+		UTXOPool overlay = handler.getUTXOPool();
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+		for (int i : component) {
+			if (parentCounts[i] == 0) {
+				ready.add(i);
+			}
+		}
+		List<Integer> accepted = new ArrayList<Integer>();
+		while (!ready.isEmpty()) {
+			int i = ready.poll();
+			Transaction tx = txs[i];
+			if (handler.isValidTx(tx, verified)) {
+				for (Transaction.Input txIn : tx.getInputs()) {
+					overlay.removeUTXO(new UTXO(txIn.prevTxHash, txIn.outputIndex));
+				}
+				tx.finalize();
+				addOutputs(overlay, tx);
+				accepted.add(i);
+			}
+			// rejected parents leave their children without inputs to spend
+			for (int child : children.get(i)) {
+				if (--parentCounts[child] == 0) {
+					ready.add(child);
+				}
+			}
+		}
+		return accepted;
+	}
+
+	private static void addOutputs(UTXOPool utxoPool, Transaction tx) {
+		for (int i = 0; i < tx.numOutputs(); i++) {
+			utxoPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+		}
+	}
+
+	private static int find(int[] roots, int i) {
+		while (roots[i] != i) {
+			roots[i] = roots[roots[i]];
+			i = roots[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] roots, int i, int j) {
+		int ri = find(roots, i);
+		int rj = find(roots, j);
+		// the smaller index stays the root, so roots are first members
+		if (ri < rj) {
+			roots[rj] = ri;
+		} else if (rj < ri) {
+			roots[ri] = rj;
+		}
+	}
+}
@@ -0,0 +1,462 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Durable UTXO store for the tip pool of a {@link BlockChain.UTXOStorage#JOURNAL} block chain.
+ * The open-addressing table of {@link OffHeapUTXOStore} is memory-mapped from a file, so a node
+ * restarts by mapping it instead of replaying the chain.
+ *
+ * <p>
+ * Changes are buffered until {@link #commit(byte[])}, which appends them with the block hash to a
+ * write-ahead log and forces it to disk before touching the table. Reopening replays the log over
+ * the table; replay is idempotent, so a table holding any part of the logged changes recovers.
+ * The log is truncated at every checkpoint. Addresses are kept in an append-only file.
+ *
+ * <p>
+ * Copies are plain {@link OffHeapUTXOStore}s and are not persisted, nor are the addresses only
+ * they intern.
+ */
+public class MappedUTXOStore extends OffHeapUTXOStore implements Closeable {
+
+    private static final String TABLE_FILE = "utxo.db";
+    private static final String NEXT_TABLE_FILE = "utxo.db.next";
+    private static final String LOG_FILE = "utxo.wal";
+    private static final String ADDRESS_FILE = "addresses.db";
+
+    // header layout
+    private static final long MAGIC = 0x5554584f44420001L;
+    private static final int H_MAGIC = 0;
+    private static final int H_CAPACITY = 8;
+    private static final int H_SIZE = 12;
+    private static final int H_USED = 16;
+    private static final int H_CLEAN = 20;
+    private static final int H_TIP_LENGTH = 24;
+    private static final int H_TIP = 28;
+    private static final int HEADER_SIZE = 64;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    // commits between checkpoints, bounds the log replayed on restart
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    // marks a pending removal
+    private static final Transaction.Output REMOVED = new Transaction().new Output(0, null);
+
+    private Path dir;
+    private TableFile table;
+    private TableFile nextTable;
+    private FileChannel log;
+    private FileAddresses addresses;
+
+    /** changes since the last commit, REMOVED for removals */
+    private UTXOMap pending = UTXOMap.EMPTY;
+    private int pendingSize;
+    private byte[] tipHash;
+    private int commits;
+
+    private MappedUTXOStore(Path dir, TableFile table, FileAddresses addresses) {
+        super(table.segments, table.capacity, table.header.getInt(H_SIZE), table.header.getInt(H_USED), addresses);
+        this.dir = dir;
+        this.table = table;
+        this.addresses = addresses;
+    }
+
+    /** Opens the store in {@code dir}, creating it if needed, and recovers from the log */
+    public static MappedUTXOStore open(Path dir) throws IOException {
+        return open(dir, 1024);
+    }
+
+    /**
+     * Opens the store in {@code dir}, creating it sized for {@code expectedSize} UTXOs if needed,
+     * and recovers from the log
+     */
+    public static MappedUTXOStore open(Path dir, int expectedSize) throws IOException {
+        Files.createDirectories(dir);
+        Files.deleteIfExists(dir.resolve(NEXT_TABLE_FILE));
+        FileAddresses addresses = FileAddresses.load(dir.resolve(ADDRESS_FILE));
+        TableFile table = TableFile.open(dir.resolve(TABLE_FILE), tableSizeFor(expectedSize));
+        MappedUTXOStore store = new MappedUTXOStore(dir, table, addresses);
+        store.recover();
+        return store;
+    }
+
+    /** @return the hash of the block of the last commit, or null if there is none */
+    public byte[] getTipHash() {
+        return tipHash;
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (pending.size() > 0) {
+            Transaction.Output txOut = pending.get(txHash, index);
+            if (txOut != null)
+                return txOut == REMOVED ? null : txOut;
+        }
+        return super.get(txHash, index);
+    }
+
+    /** @throws IllegalArgumentException if the UTXO's hash is not {@link #HASH_LENGTH} bytes */
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (utxo.getTxHash().length != HASH_LENGTH)
+            throw new IllegalArgumentException("transaction hash must be " + HASH_LENGTH + " bytes");
+        if (get(utxo.getTxHash(), utxo.getIndex()) == null)
+            pendingSize++;
+        pending = pending.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        if (get(utxo.getTxHash(), utxo.getIndex()) == null)
+            return;
+        pendingSize--;
+        pending = pending.put(utxo, REMOVED);
+    }
+
+    public int size() {
+        return super.size() + pendingSize;
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        super.forEach((utxo, txOut) -> {
+            if (pending.get(utxo) == null)
+                action.accept(utxo, txOut);
+        });
+        pending.forEach((utxo, txOut) -> {
+            if (txOut != REMOVED)
+                action.accept(utxo, txOut);
+        });
+    }
+
+    /** @return an in-memory copy including uncommitted changes */
+    public UTXOStore copy() {
+        UTXOStore store = super.copy();
+        pending.forEach((utxo, txOut) -> {
+            if (txOut == REMOVED)
+                store.remove(utxo);
+            else
+                store.put(utxo, txOut);
+        });
+        return store;
+    }
+
+    // addresses only a copy uses, e.g. of a block that is then rejected, are not persisted
+    protected Addresses addressesForCopy() {
+        return new Addresses(addresses);
+    }
+
+    /**
+     * Logs the changes since the last commit as block {@code blockHash}, forces the log and then
+     * applies them to the mapped table
+     *
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public void commit(byte[] blockHash) {
+        try {
+            ByteBuffer record = encode(blockHash);
+            addresses.force();
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 8, record.limit() - 8);
+            record.putInt(4, (int) crc.getValue());
+            while (record.hasRemaining())
+                log.write(record);
+            log.force(false);
+
+            pending.forEach((utxo, txOut) -> {
+                if (txOut == REMOVED)
+                    super.remove(utxo);
+                else
+                    super.put(utxo, txOut);
+            });
+            pending = UTXOMap.EMPTY;
+            pendingSize = 0;
+            tipHash = blockHash == null ? null : blockHash.clone();
+
+            if (++commits % CHECKPOINT_INTERVAL == 0)
+                checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Forces the mapped table to disk and truncates the log */
+    public void checkpoint() throws IOException {
+        writeHeader(false);
+        log.truncate(0);
+        log.force(false);
+    }
+
+    /** Checkpoints and closes the files. Changes that were not committed are discarded. */
+    public void close() throws IOException {
+        pending = UTXOMap.EMPTY;
+        pendingSize = 0;
+        checkpoint();
+        writeHeader(true);
+        log.close();
+        addresses.channel.close();
+        table.channel.close();
+    }
+
+    protected ByteBuffer[] allocate(int capacity) {
+        try {
+            nextTable = TableFile.map(dir.resolve(NEXT_TABLE_FILE), capacity);
+            return nextTable.segments;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // the log still covers everything since the last checkpoint, so the new table can replace
+    // the old one as is
+    protected void rehashed() {
+        try {
+            TableFile oldTable = table;
+            table = nextTable;
+            nextTable = null;
+            writeHeader(false);
+            Files.move(dir.resolve(NEXT_TABLE_FILE), dir.resolve(TABLE_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            oldTable.channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recover() throws IOException {
+        if (table.header.getInt(H_CLEAN) == 0)
+            recount();
+        int tipLength = table.header.getInt(H_TIP_LENGTH);
+        if (tipLength > 0) {
+            tipHash = new byte[tipLength];
+            for (int i = 0; i < tipLength; i++)
+                tipHash[i] = table.header.get(H_TIP + i);
+        }
+
+        log = FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        replay();
+        checkpoint();
+    }
+
+    // applies every complete record; a torn or corrupt record ends the log
+    private void replay() throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(8);
+        long position = 0;
+        while (readFully(head, position)) {
+            int length = head.getInt(0);
+            if (length < 0 || position + 8 + length > log.size())
+                break;
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (!readFully(body, position + 8))
+                break;
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != head.getInt(4))
+                break;
+            body.flip();
+            apply(body);
+            position += 8 + length;
+        }
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void apply(ByteBuffer body) {
+        tipHash = readHash(body);
+        int ops = body.getInt();
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (int i = 0; i < ops; i++) {
+            byte kind = body.get();
+            body.get(txHash);
+            UTXO utxo = new UTXO(txHash, body.getInt());
+            if (kind == PUT) {
+                double value = body.getDouble();
+                super.put(utxo, output(value, body.getInt()));
+            } else {
+                super.remove(utxo);
+            }
+        }
+    }
+
+    // record: length, crc, block hash, op count, ops
+    private ByteBuffer encode(byte[] blockHash) {
+        int[] ops = { 0, 0 };
+        pending.forEach((utxo, txOut) -> {
+            ops[0]++;
+            ops[1] += 1 + HASH_LENGTH + 4 + (txOut == REMOVED ? 0 : 8 + 4);
+        });
+        int hashLength = blockHash == null ? 0 : blockHash.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + 4 + hashLength + 4 + ops[1]);
+        record.putInt(record.capacity() - 8);
+        record.putInt(0);
+        record.putInt(hashLength);
+        if (blockHash != null)
+            record.put(blockHash);
+        record.putInt(ops[0]);
+        pending.forEach((utxo, txOut) -> {
+            record.put(txOut == REMOVED ? REMOVE : PUT);
+            record.put(utxo.getTxHash());
+            record.putInt(utxo.getIndex());
+            if (txOut != REMOVED) {
+                record.putDouble(txOut.value);
+                record.putInt(addresses.intern(txOut.address));
+            }
+        });
+        record.flip();
+        return record;
+    }
+
+    private static byte[] readHash(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == 0)
+            return null;
+        byte[] hash = new byte[length];
+        buffer.get(hash);
+        return hash;
+    }
+
+    private void writeHeader(boolean clean) throws IOException {
+        addresses.force();
+        for (MappedByteBuffer segment : table.segments)
+            segment.force();
+        MappedByteBuffer header = table.header;
+        header.putLong(H_MAGIC, MAGIC);
+        header.putInt(H_CAPACITY, capacity());
+        header.putInt(H_SIZE, super.size());
+        header.putInt(H_USED, used());
+        header.putInt(H_CLEAN, clean ? 1 : 0);
+        header.putInt(H_TIP_LENGTH, tipHash == null ? 0 : tipHash.length);
+        if (tipHash != null)
+            for (int i = 0; i < tipHash.length; i++)
+                header.put(H_TIP + i, tipHash[i]);
+        header.force();
+    }
+
+    /** A table file: header followed by the slots, mapped in segments */
+    private static class TableFile {
+        FileChannel channel;
+        MappedByteBuffer header;
+        MappedByteBuffer[] segments;
+        int capacity;
+
+        // maps a new file, whose slots read as empty
+        static TableFile map(Path path, int capacity) throws IOException {
+            TableFile table = new TableFile();
+            table.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            table.header = table.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            table.capacity = capacity;
+            int slots = Math.min(capacity, SEGMENT_SLOTS);
+            table.segments = new MappedByteBuffer[capacity / slots];
+            for (int i = 0; i < table.segments.length; i++) {
+                long position = HEADER_SIZE + (long) i * slots * SLOT_SIZE;
+                table.segments[i] = table.channel.map(FileChannel.MapMode.READ_WRITE, position, (long) slots * SLOT_SIZE);
+            }
+            return table;
+        }
+
+        static TableFile open(Path path, int capacity) throws IOException {
+            if (Files.exists(path) && Files.size(path) >= HEADER_SIZE)
+                return map(path, readCapacity(path));
+            Files.deleteIfExists(path);
+            TableFile table = map(path, capacity);
+            table.header.putLong(H_MAGIC, MAGIC);
+            table.header.putInt(H_CAPACITY, capacity);
+            table.header.putInt(H_CLEAN, 1);
+            return table;
+        }
+
+        private static int readCapacity(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header) >= 0)
+                    ;
+                if (header.getLong(H_MAGIC) != MAGIC)
+                    throw new IOException("not a UTXO table: " + path);
+                return header.getInt(H_CAPACITY);
+            }
+        }
+    }
+
+    /** Interned addresses persisted as length-prefixed X.509 encodings, in id order */
+    private static class FileAddresses extends Addresses {
+        FileChannel channel;
+        boolean loading;
+
+        static FileAddresses load(Path path) throws IOException {
+            FileAddresses addresses = new FileAddresses();
+            addresses.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            ByteBuffer data = ByteBuffer.allocate((int) addresses.channel.size());
+            while (data.hasRemaining() && addresses.channel.read(data, data.position()) >= 0)
+                ;
+            data.flip();
+            addresses.loading = true;
+            try {
+                KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+                while (data.remaining() >= 4) {
+                    int start = data.position();
+                    int length = data.getInt();
+                    if (length > data.remaining()) {
+                        data.position(start);
+                        break;
+                    }
+                    PublicKey address = null;
+                    if (length >= 0) {
+                        byte[] encoded = new byte[length];
+                        data.get(encoded);
+                        address = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+                    }
+                    addresses.intern(address);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            addresses.loading = false;
+            // drop a torn last record
+            addresses.channel.truncate(data.position());
+            addresses.channel.position(data.position());
+            return addresses;
+        }
+
+        protected void added(PublicKey address) {
+            if (loading)
+                return;
+            byte[] encoded = address == null ? null : address.getEncoded();
+            ByteBuffer record = ByteBuffer.allocate(4 + (encoded == null ? 0 : encoded.length));
+            record.putInt(encoded == null ? -1 : encoded.length);
+            if (encoded != null)
+                record.put(encoded);
+            record.flip();
+            try {
+                while (record.hasRemaining())
+                    channel.write(record);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void force() throws IOException {
+            channel.force(false);
+        }
+    }
+}
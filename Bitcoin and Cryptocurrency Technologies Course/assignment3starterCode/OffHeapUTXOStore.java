@@ -0,0 +1,401 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * UTXO store kept outside the Java heap in an open-addressing table with linear probing. Each
+ * slot holds a fixed-width key (transaction hash and output index) and the output as its value
+ * plus the id of its interned address, so entries cost 64 bytes of direct memory and nothing on
+ * the heap. Outputs are rebuilt on lookup.
+ *
+ * <p>
+ * Only {@link #HASH_LENGTH} byte (SHA-256) transaction hashes can be stored. Copies duplicate the
+ * table, so this store suits a single long-lived pool such as the tip pool.
+ */
+public class OffHeapUTXOStore implements UTXOStore {
+
+    public static final int HASH_LENGTH = 32;
+
+    // slot layout
+    private static final int STATE = 0;
+    private static final int INDEX = 4;
+    private static final int HASH = 8;
+    private static final int VALUE = HASH + HASH_LENGTH;
+    private static final int ADDRESS = VALUE + 8;
+    private static final int HASH_CODE = ADDRESS + 4;
+    // padded so slots never straddle a page of a mapped file
+    protected static final int SLOT_SIZE = 64;
+
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+    private static final int DELETED = 2;
+
+    // slots per direct buffer, keeps each buffer below the 2 GB limit
+    protected static final int SEGMENT_BITS = 24;
+    protected static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // outputs are inner objects of a transaction
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private ByteBuffer[] segments;
+    /** number of slots, a power of two */
+    private int capacity;
+    private int size;
+    /** full and deleted slots, kept at most half of capacity */
+    private int used;
+    private Addresses addresses;
+
+    /** Creates an empty store */
+    public OffHeapUTXOStore() {
+        this(1024);
+    }
+
+    /** Creates an empty store sized to hold {@code expectedSize} UTXOs without rehashing */
+    public OffHeapUTXOStore(int expectedSize) {
+        capacity = tableSizeFor(expectedSize);
+        segments = allocateDirect(capacity);
+        addresses = new Addresses();
+    }
+
+    /**
+     * Creates a store over existing {@code segments} of a table with {@code capacity} slots, as
+     * laid out by {@link #allocate(int)}
+     */
+    protected OffHeapUTXOStore(ByteBuffer[] segments, int capacity, int size, int used, Addresses addresses) {
+        this.segments = segments;
+        this.capacity = capacity;
+        this.size = size;
+        this.used = used;
+        this.addresses = addresses;
+    }
+
+    private OffHeapUTXOStore(OffHeapUTXOStore store, Addresses addresses) {
+        capacity = store.capacity;
+        size = store.size;
+        used = store.used;
+        this.addresses = addresses;
+        segments = new ByteBuffer[store.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer src = store.segments[i].duplicate();
+            src.clear();
+            segments[i] = ByteBuffer.allocateDirect(src.capacity());
+            segments[i].put(src);
+        }
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (txHash.length != HASH_LENGTH)
+            return null;
+        int slot = find(txHash, index, UTXO.hashCode(txHash, index));
+        if (slot < 0)
+            return null;
+        ByteBuffer b = segment(slot);
+        int o = offset(slot);
+        return output(b.getDouble(o + VALUE), b.getInt(o + ADDRESS));
+    }
+
+    /** @throws IllegalArgumentException if the UTXO's hash is not {@link #HASH_LENGTH} bytes */
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("transaction hash must be " + HASH_LENGTH + " bytes");
+        int hashCode = utxo.hashCode();
+        int slot = find(txHash, utxo.getIndex(), hashCode);
+        if (slot < 0) {
+            if ((used + 1) * 2 > capacity)
+                rehash((size + 1) * 4 > capacity ? capacity * 2 : capacity);
+            slot = insertionSlot(hashCode);
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            if (b.getInt(o + STATE) == EMPTY)
+                used++;
+            size++;
+            b.putInt(o + STATE, FULL);
+            b.putInt(o + INDEX, utxo.getIndex());
+            for (int i = 0; i < HASH_LENGTH; i += 8)
+                b.putLong(o + HASH + i, longAt(txHash, i));
+            b.putInt(o + HASH_CODE, hashCode);
+        }
+        ByteBuffer b = segment(slot);
+        int o = offset(slot);
+        b.putDouble(o + VALUE, txOut.value);
+        b.putInt(o + ADDRESS, addresses.intern(txOut.address));
+    }
+
+    public void remove(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH)
+            return;
+        int slot = find(txHash, utxo.getIndex(), utxo.hashCode());
+        if (slot < 0)
+            return;
+        segment(slot).putInt(offset(slot) + STATE, DELETED);
+        size--;
+    }
+
+    /** @return an output of {@code value} to the address with id {@code addressId} */
+    protected Transaction.Output output(double value, int addressId) {
+        return OUTPUTS.new Output(value, addresses.get(addressId));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot < capacity; slot++) {
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            if (b.getInt(o + STATE) != FULL)
+                continue;
+            for (int i = 0; i < HASH_LENGTH; i++)
+                txHash[i] = b.get(o + HASH + i);
+            UTXO utxo = new UTXO(txHash, b.getInt(o + INDEX));
+            action.accept(utxo, output(b.getDouble(o + VALUE), b.getInt(o + ADDRESS)));
+        }
+    }
+
+    /**
+     * Copies the whole table into new direct buffers, in time and direct memory proportional to
+     * the table's capacity. The buffers are only freed once the copy is garbage collected, so this
+     * must not be used for per-block copies; layer a {@link UTXOOverlay} over the store instead
+     */
+    public UTXOStore copy() {
+        return new OffHeapUTXOStore(this, addressesForCopy());
+    }
+
+    /** @return the interner for a copy of this store, by default this store's own */
+    protected Addresses addressesForCopy() {
+        return addresses;
+    }
+
+    /** @return the number of bytes of direct memory held by the table */
+    public long getAllocatedBytes() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    /** @return the number of slots in the table */
+    protected int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of full and deleted slots in the table */
+    protected int used() {
+        return used;
+    }
+
+    protected Addresses addresses() {
+        return addresses;
+    }
+
+    /** Recomputes the entry counts from the slot states, e.g. after an unclean shutdown */
+    protected void recount() {
+        size = 0;
+        used = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int state = segment(slot).getInt(offset(slot) + STATE);
+            if (state == FULL)
+                size++;
+            if (state != EMPTY)
+                used++;
+        }
+    }
+
+    /** @return zeroed segments for a table of {@code capacity} slots */
+    protected ByteBuffer[] allocate(int capacity) {
+        return allocateDirect(capacity);
+    }
+
+    /** Called once all entries have been moved to the segments returned by {@link #allocate(int)} */
+    protected void rehashed() {
+    }
+
+    private int find(byte[] txHash, int index, int hashCode) {
+        int mask = capacity - 1;
+        int slot = spread(hashCode) & mask;
+        while (true) {
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            int state = b.getInt(o + STATE);
+            if (state == EMPTY)
+                return -1;
+            if (state == FULL && b.getInt(o + HASH_CODE) == hashCode && b.getInt(o + INDEX) == index
+                    && hashEquals(b, o, txHash))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // first deleted or empty slot on the probe sequence of hashCode
+    private int insertionSlot(int hashCode) {
+        int mask = capacity - 1;
+        int slot = spread(hashCode) & mask;
+        while (segment(slot).getInt(offset(slot) + STATE) == FULL)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash(int newCapacity) {
+        if (newCapacity > MAX_CAPACITY)
+            throw new IllegalStateException("UTXO store is full");
+        ByteBuffer[] oldSegments = segments;
+        int oldCapacity = capacity;
+        segments = allocate(newCapacity);
+        capacity = newCapacity;
+        used = size;
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            ByteBuffer src = oldSegments[oldSlot >>> SEGMENT_BITS];
+            int so = offset(oldSlot);
+            if (src.getInt(so + STATE) != FULL)
+                continue;
+            int slot = insertionSlot(src.getInt(so + HASH_CODE));
+            ByteBuffer dst = segment(slot);
+            int o = offset(slot);
+            dst.putInt(o + STATE, FULL);
+            dst.putInt(o + INDEX, src.getInt(so + INDEX));
+            for (int i = 0; i < HASH_LENGTH; i += 8)
+                dst.putLong(o + HASH + i, src.getLong(so + HASH + i));
+            dst.putDouble(o + VALUE, src.getDouble(so + VALUE));
+            dst.putInt(o + ADDRESS, src.getInt(so + ADDRESS));
+            dst.putInt(o + HASH_CODE, src.getInt(so + HASH_CODE));
+        }
+        rehashed();
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_BITS];
+    }
+
+    private static int offset(int slot) {
+        return (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    private static ByteBuffer[] allocateDirect(int capacity) {
+        int slots = Math.min(capacity, SEGMENT_SLOTS);
+        ByteBuffer[] segments = new ByteBuffer[capacity / slots];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        return segments;
+    }
+
+    // smallest power of two keeping expectedSize at half load
+    protected static int tableSizeFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity / 2 < expectedSize)
+            capacity *= 2;
+        return capacity;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean hashEquals(ByteBuffer b, int o, byte[] txHash) {
+        for (int i = 0; i < HASH_LENGTH; i += 8) {
+            if (b.getLong(o + HASH + i) != longAt(txHash, i))
+                return false;
+        }
+        return true;
+    }
+
+    // big-endian, matching ByteBuffer's default order
+    private static long longAt(byte[] bytes, int i) {
+        long l = 0;
+        for (int j = 0; j < 8; j++)
+            l = (l << 8) | (bytes[i + j] & 0xff);
+        return l;
+    }
+
+    /**
+     * Interned addresses, shared by copies since ids are only ever appended. Pools are read and
+     * written from parallel validation, so lookups are lock-free and new ids are appended under a
+     * lock. An interner can be layered over another, whose ids it reuses as far as they were handed
+     * out when it was created, so addresses it interns stay out of the other one.
+     */
+    protected static class Addresses {
+        private final Addresses base;
+        /** ids below this are the base's */
+        private final int baseCount;
+        /** keys of the ids from baseCount up, an id is only handed out once its key is set */
+        private volatile PublicKey[] keys = new PublicKey[16];
+        private int count;
+        private volatile int nullId = -1;
+        private ConcurrentHashMap<PublicKey, Integer> ids = new ConcurrentHashMap<PublicKey, Integer>();
+
+        protected Addresses() {
+            base = null;
+            baseCount = 0;
+        }
+
+        protected Addresses(Addresses base) {
+            this.base = base;
+            synchronized (base) {
+                baseCount = base.count;
+            }
+            count = baseCount;
+        }
+
+        public PublicKey get(int id) {
+            if (id < baseCount)
+                return base.get(id);
+            int i = id - baseCount;
+            PublicKey[] keys = this.keys;
+            if (i < keys.length && keys[i] != null)
+                return keys[i];
+            // a reader may see the array before the key set in it, and null keys look unset
+            synchronized (this) {
+                if (id >= count)
+                    throw new IndexOutOfBoundsException("no address with id " + id);
+                return this.keys[i];
+            }
+        }
+
+        public int intern(PublicKey address) {
+            int id = idOf(address);
+            if (id >= 0)
+                return id;
+            synchronized (this) {
+                id = idOf(address);
+                if (id < 0) {
+                    id = append(address);
+                    // the map takes no null keys, outputs without an address share one id
+                    if (address == null)
+                        nullId = id;
+                    else
+                        ids.put(address, id);
+                }
+                return id;
+            }
+        }
+
+        // returns the id of address, or -1 if it has none yet
+        private int idOf(PublicKey address) {
+            if (base != null) {
+                int id = base.idOf(address);
+                if (id >= 0 && id < baseCount)
+                    return id;
+            }
+            if (address == null)
+                return nullId;
+            Integer id = ids.get(address);
+            return id == null ? -1 : id;
+        }
+
+        private int append(PublicKey address) {
+            int i = count - baseCount;
+            if (i == keys.length)
+                keys = Arrays.copyOf(keys, 2 * i);
+            keys[i] = address;
+            added(address);
+            return count++;
+        }
+
+        /** Called when {@code address} gets the next id */
+        protected void added(PublicKey address) {
+        }
+    }
+}
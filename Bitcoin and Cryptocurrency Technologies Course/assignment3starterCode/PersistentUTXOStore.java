@@ -0,0 +1,39 @@
+import java.util.function.BiConsumer;
+
+/** Heap store over a {@link UTXOMap}; copies share structure and take constant time */
+public class PersistentUTXOStore implements UTXOStore {
+
+    private UTXOMap map;
+
+    public PersistentUTXOStore() {
+        this(UTXOMap.EMPTY);
+    }
+
+    private PersistentUTXOStore(UTXOMap map) {
+        this.map = map;
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        return map.get(txHash, index);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        map = map.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        map = map.remove(utxo);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        map.forEach(action);
+    }
+
+    public UTXOStore copy() {
+        return new PersistentUTXOStore(map);
+    }
+}
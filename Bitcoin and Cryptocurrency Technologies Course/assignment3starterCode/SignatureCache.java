@@ -0,0 +1,162 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of input signatures that have already been verified, keyed by transaction hash
+ * and input index, so a transaction relayed to the mempool, mined and then seen again on every
+ * fork is only checked once. Entries also keep the signature, the key it was verified under and
+ * the signed data, and a hit requires all of them to match, so a transaction carrying a stale or
+ * forged hash cannot reuse another one's result.
+ *
+ * <p>
+ * The cache is split into independently locked stripes, each evicting its least recently used
+ * entry when full. Only valid signatures are cached.
+ */
+public class SignatureCache {
+
+    private static final int STRIPES = 16;
+
+    private static SignatureCache common;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** Creates a cache holding up to about {@code capacity} verified signatures */
+    public SignatureCache(int capacity) {
+        int stripeCapacity = Math.max(1, capacity / STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(stripeCapacity);
+    }
+
+    /** @return a cache shared by all handlers */
+    public static synchronized SignatureCache getCommon() {
+        if (common == null)
+            common = new SignatureCache(1 << 16);
+        return common;
+    }
+
+    /**
+     * @return true if the current signature of input {@code index} of the finalized transaction
+     *         {@code tx}, whose outputs serialize to {@code rawOutputs}, was verified under
+     *         {@code address}
+     */
+    public boolean contains(Transaction tx, int index, PublicKey address, byte[] rawOutputs) {
+        Key key = new Key(tx.getHash(), index);
+        Entry entry = stripe(key).get(key);
+        if (entry == null || !entry.address.equals(address))
+            return false;
+        Transaction.Input txIn = tx.getInput(index);
+        return entry.outputIndex == txIn.outputIndex && Arrays.equals(entry.signature, txIn.signature)
+                && Arrays.equals(entry.prevTxHash, txIn.prevTxHash)
+                && Arrays.equals(entry.rawOutputs, rawOutputs);
+    }
+
+    /**
+     * Records that input {@code index} of the finalized transaction {@code tx}, whose outputs
+     * serialize to {@code rawOutputs}, carries a valid signature under {@code address}
+     */
+    public void add(Transaction tx, int index, PublicKey address, byte[] rawOutputs) {
+        Key key = new Key(tx.getHash(), index);
+        stripe(key).put(key, new Entry(address, tx.getInput(index), rawOutputs));
+    }
+
+    /** @return the number of cached signatures */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    /**
+     * @return true if input {@code index} of {@code tx} carries a valid signature under
+     *         {@code address}, looking it up in the common cache before verifying it.
+     *         {@code rawOutputs} must be the current {@link Transaction#getRawOutputs()}, which
+     *         callers serialize once for all inputs of {@code tx}
+     */
+    public static boolean verify(PublicKey address, Transaction tx, int index, byte[] rawOutputs) {
+        byte[] signature = tx.getInput(index).signature;
+        if (tx.getHash() == null)
+            return Crypto.verifySignature(address, tx, index, rawOutputs, signature);
+        SignatureCache cache = getCommon();
+        if (cache.contains(tx, index, address, rawOutputs))
+            return true;
+        if (!Crypto.verifySignature(address, tx, index, rawOutputs, signature))
+            return false;
+        cache.add(tx, index, address, rawOutputs);
+        return true;
+    }
+
+    private Stripe stripe(Key key) {
+        return stripes[(key.hash ^ (key.hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static class Key {
+        private final byte[] txHash;
+        private final int index;
+        private final int hash;
+
+        Key(byte[] txHash, int index) {
+            this.txHash = txHash;
+            this.index = index;
+            this.hash = UTXO.hashCode(txHash, index);
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return hash == key.hash && index == key.index && Arrays.equals(txHash, key.txHash);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+        private final PublicKey address;
+        private final byte[] signature;
+        private final byte[] prevTxHash;
+        private final int outputIndex;
+        private final byte[] rawOutputs;
+
+        // copies what the caller may still change, the serialized outputs are a fresh buffer
+        Entry(PublicKey address, Transaction.Input txIn, byte[] rawOutputs) {
+            this.address = address;
+            this.signature = txIn.signature == null ? null : txIn.signature.clone();
+            this.prevTxHash = txIn.prevTxHash == null ? null : txIn.prevTxHash.clone();
+            this.outputIndex = txIn.outputIndex;
+            this.rawOutputs = rawOutputs;
+        }
+    }
+
+    // access ordered, so the eldest entry is the least recently used one
+    private static class Stripe extends LinkedHashMap<Key, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        public synchronized Entry get(Object key) {
+            return super.get(key);
+        }
+
+        public synchronized Entry put(Key key, Entry value) {
+            return super.put(key, value);
+        }
+
+        public synchronized int size() {
+            return super.size();
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return super.size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Checks the input signatures of a batch of transactions in parallel on a fork/join pool. The
+ * outputs spent by each input are resolved against a UTXO pool, and the outputs of each
+ * transaction serialized, on the calling thread first, so the pool itself is never touched
+ * concurrently; only the RSA checks fan out. Signatures found in
+ * the {@link SignatureCache} are not checked again.
+ */
+public class SignatureVerifier {
+
+    // inputs verified by one task before it stops splitting
+    private static final int LEAF_INPUTS = 4;
+
+    private static SignatureVerifier common;
+
+    private final ForkJoinPool pool;
+
+    /** Creates a verifier running on {@code parallelism} worker threads */
+    public SignatureVerifier(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /** @return a verifier shared by all handlers, with one worker per available processor */
+    public static synchronized SignatureVerifier getCommon() {
+        if (common == null)
+            common = new SignatureVerifier(Runtime.getRuntime().availableProcessors());
+        return common;
+    }
+
+    /**
+     * @return the transactions among {@code txs} whose every input spends an output in
+     *         {@code utxoPool} and carries a valid signature for it, compared by identity
+     */
+    public Set<Transaction> verify(Transaction[] txs, UTXOPool utxoPool) {
+        int count = 0;
+        for (Transaction tx : txs)
+            count += tx.numInputs();
+
+        Transaction[] inputTxs = new Transaction[count];
+        int[] inputIndices = new int[count];
+        PublicKey[] addresses = new PublicKey[count];
+        byte[][] rawOutputs = new byte[count][];
+        boolean[] resolved = new boolean[txs.length];
+        // inputs of txs[t] are at [start[t], start[t + 1])
+        int[] start = new int[txs.length + 1];
+        int n = 0;
+        for (int t = 0; t < txs.length; t++) {
+            start[t] = n;
+            resolved[t] = true;
+            byte[] raw = txs[t].getRawOutputs();
+            for (int i = 0; i < txs[t].numInputs(); i++) {
+                Transaction.Input txIn = txs[t].getInput(i);
+                Transaction.Output txOut = utxoPool.getTxOutput(txIn.prevTxHash, txIn.outputIndex);
+                if (txOut == null) {
+                    resolved[t] = false;
+                    continue;
+                }
+                inputTxs[n] = txs[t];
+                inputIndices[n] = i;
+                addresses[n] = txOut.address;
+                rawOutputs[n] = raw;
+                n++;
+            }
+        }
+        start[txs.length] = n;
+
+        boolean[] valid = new boolean[n];
+        if (n > 0)
+            pool.invoke(new VerifyTask(inputTxs, inputIndices, addresses, rawOutputs, valid, 0, n));
+
+        Set<Transaction> verified = Collections.newSetFromMap(new IdentityHashMap<Transaction, Boolean>());
+        for (int t = 0; t < txs.length; t++) {
+            boolean ok = resolved[t];
+            for (int i = start[t]; ok && i < start[t + 1]; i++)
+                ok = valid[i];
+            if (ok)
+                verified.add(txs[t]);
+        }
+        return verified;
+    }
+
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Transaction[] txs;
+        private final int[] indices;
+        private final PublicKey[] addresses;
+        private final byte[][] rawOutputs;
+        private final boolean[] valid;
+        private final int from;
+        private final int to;
+
+        VerifyTask(Transaction[] txs, int[] indices, PublicKey[] addresses, byte[][] rawOutputs, boolean[] valid,
+                int from, int to) {
+            this.txs = txs;
+            this.indices = indices;
+            this.addresses = addresses;
+            this.rawOutputs = rawOutputs;
+            this.valid = valid;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= LEAF_INPUTS) {
+                for (int i = from; i < to; i++)
+                    valid[i] = SignatureCache.verify(addresses[i], txs[i], indices[i], rawOutputs[i]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new VerifyTask(txs, indices, addresses, rawOutputs, valid, from, mid),
+                    new VerifyTask(txs, indices, addresses, rawOutputs, valid, mid, to));
+        }
+    }
+}
@@ -1,8 +1,8 @@
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -73,12 +73,25 @@ public class Transaction {
         public double value;
         /** the address or public key of the recipient */
         public PublicKey address;
+        /** serialized exponent and modulus of the last address encoded */
+        private volatile EncodedAddress encodedAddress;
 
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** @return the exponent followed by the modulus of the address, cached per address */
+        private byte[] getAddressBytes() {
+            PublicKey addr = address;
+            EncodedAddress encoded = encodedAddress;
+            if (encoded == null || encoded.address != addr) {
+                encoded = new EncodedAddress(addr);
+                encodedAddress = encoded;
+            }
+            return encoded.bytes;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -109,6 +122,20 @@ public class Transaction {
         }
     }
 
+    // public keys are immutable, so the bytes stay valid for as long as the output holds the key
+    private static class EncodedAddress {
+        final PublicKey address;
+        final byte[] bytes;
+
+        EncodedAddress(PublicKey address) {
+            byte[] exponent = ((RSAPublicKey) address).getPublicExponent().toByteArray();
+            byte[] modulus = ((RSAPublicKey) address).getModulus().toByteArray();
+            this.address = address;
+            this.bytes = Arrays.copyOf(exponent, exponent.length + modulus.length);
+            System.arraycopy(modulus, 0, bytes, exponent.length, modulus.length);
+        }
+    }
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
@@ -158,8 +185,7 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (ut.matches(in.prevTxHash, in.outputIndex)) {
                 inputs.remove(i);
                 return;
             }
@@ -168,37 +194,31 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+        byte[] raw = getRawOutputs();
+        ByteBuffer b = ByteBuffer.wrap(new byte[length(in.prevTxHash) + Integer.BYTES + raw.length]);
+        putBytes(b, in.prevTxHash);
         b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        b.put(raw);
+        return b.array();
+    }
+
+    /**
+     * Feeds the data to sign for input {@code index}, the same bytes as
+     * {@link #getRawDataToSign(int)}, into {@code sig} without building it. {@code rawOutputs}
+     * must be the current {@link #getRawOutputs()}, so they can be serialized once for all inputs.
+     */
+    public void updateDataToSign(Signature sig, int index, byte[] rawOutputs) throws SignatureException {
+        Input in = inputs.get(index);
+        if (in.prevTxHash != null)
+            sig.update(in.prevTxHash);
+        sig.update((byte) (in.outputIndex >>> 24));
+        sig.update((byte) (in.outputIndex >>> 16));
+        sig.update((byte) (in.outputIndex >>> 8));
+        sig.update((byte) in.outputIndex);
+        sig.update(rawOutputs);
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -206,50 +226,45 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] raw = getRawOutputs();
+        int length = raw.length;
+        for (Input in : inputs)
+            length += length(in.prevTxHash) + Integer.BYTES + length(in.signature);
+        ByteBuffer b = ByteBuffer.wrap(new byte[length]);
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+            putBytes(b, in.prevTxHash);
             b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            putBytes(b, in.signature);
         }
+        b.put(raw);
+        return b.array();
+    }
+
+    /** @return the outputs as currently serialized into the data to sign */
+    byte[] getRawOutputs() {
+        int length = 0;
+        for (Output op : outputs)
+            length += Double.BYTES + op.getAddressBytes().length;
+        ByteBuffer b = ByteBuffer.wrap(new byte[length]);
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
             b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+            b.put(op.getAddressBytes());
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return b.array();
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer b, byte[] bytes) {
+        if (bytes != null)
+            b.put(bytes);
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        byte[] rawTx = getRawTx();
+        hash = Crypto.getDigest().digest(rawTx);
     }
 
     public void setHash(byte[] h) {
@@ -1,38 +1,276 @@
-
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
 
+/**
+ * Pool of unconfirmed transactions, indexed by hash and by fee rate. The fee rate index is kept up
+ * to date on every insert and removal, so the best paying transactions can be read off the top in
+ * time proportional to their number rather than the size of the pool.
+ *
+ * <p>
+ * The pool is bounded: transactions older than the expiry age are dropped, and while the pool
+ * holds more than its entry or byte limit the transaction with the lowest fee rate is evicted,
+ * together with the pooled transactions spending its outputs. Transactions claiming an output
+ * that a pooled transaction already spends are rejected.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    public static final int DEFAULT_MAX_COUNT = 100000;
+    public static final long DEFAULT_MAX_SIZE = 64L << 20;
+    public static final long DEFAULT_EXPIRY_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
+    private final int maxCount;
+    private final long maxSize;
+    private final long expiryMillis;
+
+    /** in insertion order, so oldest first */
+    private LinkedHashMap<ByteArrayWrapper, Entry> H;
+    /** best fee rate first, then oldest first */
+    private TreeSet<Entry> byFeeRate;
+    /** pooled transaction spending each output */
+    private HashMap<UTXO, Entry> spenders;
+    private long sequence;
+    /** total raw size of the pooled transactions */
+    private long size;
+
+    private long evictedCount;
+    private long expiredCount;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(DEFAULT_MAX_COUNT, DEFAULT_MAX_SIZE, DEFAULT_EXPIRY_MILLIS);
+    }
+
+    /**
+     * Creates a pool holding at most {@code maxCount} transactions of {@code maxSize} raw bytes in
+     * total, each for at most {@code expiryMillis} milliseconds
+     */
+    public TransactionPool(int maxCount, long maxSize, long expiryMillis) {
+        this.maxCount = maxCount;
+        this.maxSize = maxSize;
+        this.expiryMillis = expiryMillis;
+        H = new LinkedHashMap<ByteArrayWrapper, Entry>();
+        byFeeRate = new TreeSet<Entry>();
+        spenders = new HashMap<UTXO, Entry>();
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        maxCount = txPool.maxCount;
+        maxSize = txPool.maxSize;
+        expiryMillis = txPool.expiryMillis;
+        H = new LinkedHashMap<ByteArrayWrapper, Entry>(txPool.H);
+        byFeeRate = new TreeSet<Entry>(txPool.byFeeRate);
+        spenders = new HashMap<UTXO, Entry>(txPool.spenders);
+        sequence = txPool.sequence;
+        size = txPool.size;
+        evictedCount = txPool.evictedCount;
+        expiredCount = txPool.expiredCount;
     }
 
-    public void addTransaction(Transaction tx) {
+    /** Adds {@code tx} with an unknown fee, so it ranks below every transaction paying one */
+    public boolean addTransaction(Transaction tx) {
+        return addTransaction(tx, 0);
+    }
+
+    /**
+     * Adds {@code tx}, which pays {@code fee}, replacing any transaction with the same hash
+     *
+     * @return false if {@code tx} conflicts with a pooled transaction or was evicted right away
+     *         for paying the lowest fee rate of a full pool
+     */
+    public boolean addTransaction(Transaction tx, double fee) {
+        long now = now();
+        expire(now);
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        Entry old = H.get(hash);
+        for (Transaction.Input txIn : tx.getInputs()) {
+            Entry spender = spenders.get(new UTXO(txIn.prevTxHash, txIn.outputIndex));
+            if (spender != null && spender != old)
+                return false;
+        }
+        if (old != null)
+            remove(old);
+
+        Entry entry = new Entry(tx, hash, fee, tx.getRawTx().length, now, sequence++);
+        add(entry);
+        while (H.size() > maxCount || size > maxSize)
+            evictedCount += removeWithDescendants(byFeeRate.last());
+        return H.containsKey(hash);
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Entry entry = H.get(hash);
+        if (entry != null)
+            remove(entry);
+    }
+
+    /**
+     * Removes the pooled transactions other than {@code tx} that claim one of its inputs, e.g.
+     * once {@code tx} has been mined, together with their descendants. Takes time proportional to
+     * the number of inputs and removed transactions.
+     *
+     * @return the number of removed transactions
+     */
+    public int removeConflicts(Transaction tx) {
+        int removed = 0;
+        for (Transaction.Input txIn : tx.getInputs()) {
+            Entry spender = spenders.get(new UTXO(txIn.prevTxHash, txIn.outputIndex));
+            if (spender != null && spender.tx != tx)
+                removed += removeWithDescendants(spender);
+        }
+        return removed;
+    }
+
+    /** @return the pooled transaction spending {@code utxo}, or null if there is none */
+    public Transaction getSpender(UTXO utxo) {
+        Entry spender = spenders.get(utxo);
+        return spender == null ? null : spender.tx;
+    }
+
+    /** Removes all transactions, keeping the limits and counters */
+    public void clear() {
+        H.clear();
+        byFeeRate.clear();
+        spenders.clear();
+        size = 0;
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return the fee recorded for the transaction with hash {@code txHash}, or 0 if it is not pooled */
+    public double getFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? 0 : entry.fee;
     }
 
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry entry : H.values())
+            T.add(entry.tx);
         return T;
     }
+
+    /**
+     * @return the transactions with the best fee rates, best first, until their raw sizes add up
+     *         to at least {@code size} bytes or the pool is exhausted
+     */
+    public ArrayList<Transaction> getTopTransactions(int size) {
+        ArrayList<Transaction> T = new ArrayList<Transaction>();
+        Iterator<Entry> it = byFeeRate.iterator();
+        long total = 0;
+        while (total < size && it.hasNext()) {
+            Entry entry = it.next();
+            T.add(entry.tx);
+            total += entry.size;
+        }
+        return T;
+    }
+
+    /** @return the number of pooled transactions */
+    public int size() {
+        return H.size();
+    }
+
+    /** @return the total raw size of the pooled transactions in bytes */
+    public long getSize() {
+        return size;
+    }
+
+    /** @return the number of transactions evicted to respect the limits, including descendants */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /** @return the number of transactions dropped for their age, including descendants */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /** @return the current time in milliseconds, which decides expiry */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    // descendants go with their expired ancestor, as they could never be mined without it
+    private void expire(long now) {
+        while (!H.isEmpty()) {
+            Entry entry = H.values().iterator().next();
+            if (now - entry.time < expiryMillis)
+                break;
+            expiredCount += removeWithDescendants(entry);
+        }
+    }
+
+    private void add(Entry entry) {
+        H.put(entry.hash, entry);
+        byFeeRate.add(entry);
+        for (Transaction.Input txIn : entry.tx.getInputs())
+            spenders.put(new UTXO(txIn.prevTxHash, txIn.outputIndex), entry);
+        size += entry.size;
+    }
+
+    private void remove(Entry entry) {
+        H.remove(entry.hash);
+        unindex(entry);
+    }
+
+    // descendants could never be mined without entry, returns the number removed. Walks a worklist
+    // rather than recursing, as a chain of pooled transactions can be arbitrarily deep
+    private int removeWithDescendants(Entry entry) {
+        ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+        remove(entry);
+        pending.add(entry);
+        int removed = 0;
+        while (!pending.isEmpty()) {
+            Transaction tx = pending.poll().tx;
+            removed++;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                Entry child = spenders.get(new UTXO(tx.getHash(), i));
+                if (child != null && H.containsKey(child.hash)) {
+                    remove(child);
+                    pending.add(child);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private void unindex(Entry entry) {
+        byFeeRate.remove(entry);
+        for (Transaction.Input txIn : entry.tx.getInputs())
+            spenders.remove(new UTXO(txIn.prevTxHash, txIn.outputIndex), entry);
+        size -= entry.size;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final Transaction tx;
+        final ByteArrayWrapper hash;
+        final double fee;
+        final int size;
+        final double feeRate;
+        final long time;
+        final long sequence;
+
+        Entry(Transaction tx, ByteArrayWrapper hash, double fee, int size, long time, long sequence) {
+            this.tx = tx;
+            this.hash = hash;
+            this.fee = fee;
+            this.size = size;
+            this.feeRate = fee / Math.max(size, 1);
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Entry other) {
+            int c = Double.compare(other.feeRate, feeRate);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
 }
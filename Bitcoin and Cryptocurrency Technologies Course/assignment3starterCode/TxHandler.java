@@ -1,10 +1,15 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 public class TxHandler {
 
+	// up to this many inputs are checked for double spends without a set
+	private static final int PAIRWISE_DOUBLE_SPEND_CHECK = 16;
+
 	UTXOPool utxoPool;
 
 	/**
@@ -29,7 +34,17 @@ public class TxHandler {
 	 *         output values; and false otherwise.
 	 */
 	public boolean isValidTx(Transaction tx) {
-		return allOutputsExist(tx) && validSignatures(tx) && noDoubleSpending(tx) && nonNegativeOutputs(tx)
+		return isValidTx(tx, Collections.emptySet());
+	}
+
+	/**
+	 * Same as {@link #isValidTx(Transaction)}, except that the signatures of
+	 * transactions in {@code verified}, as returned by
+	 * {@link #verifySignatures(Transaction[])} for the current batch, are not
+	 * checked again.
+	 */
+	boolean isValidTx(Transaction tx, Set<Transaction> verified) {
+		return allOutputsExist(tx) && validSignatures(tx, verified) && noDoubleSpending(tx) && nonNegativeOutputs(tx)
 				&& noOverSpending(tx);
 	}
 
@@ -39,9 +54,10 @@ public class TxHandler {
 	 * of accepted transactions, and updating the current UTXO pool as appropriate.
 	 */
 	public Transaction[] handleTxs(Transaction[] txs) {
+		Set<Transaction> verified = verifySignatures(txs);
 		List<Transaction> transactions = new ArrayList<Transaction>();
 		for (Transaction tx : getSortedTransactions(txs)) {
-			if (isValidTx(tx)) {
+			if (isValidTx(tx, verified)) {
 				for (Transaction.Input txIn : tx.getInputs()) {
 					UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
 					utxoPool.removeUTXO(utxo);
@@ -53,6 +69,22 @@ public class TxHandler {
 		return transactions.toArray(new Transaction[0]);
 	}
 
+	/**
+	 * Checks the signatures of {@code txs} against the current UTXO pool in
+	 * parallel, so that {@link #isValidTx(Transaction, Set)} only has to apply the
+	 * stateful checks to them. Transactions spending outputs that are not in the
+	 * pool yet are still verified one by one when they are validated. The result
+	 * is only meant for validating this batch, as transactions may change later.
+	 *
+	 * @return the transactions whose signatures are all valid
+	 */
+	public Set<Transaction> verifySignatures(Transaction[] txs) {
+		if (txs.length > 1) {
+			return SignatureVerifier.getCommon().verify(txs, utxoPool);
+		}
+		return Collections.emptySet();
+	}
+
 	/**
 	 * Sort transactions by different algorithms in derived class.
 	 * 
@@ -66,20 +98,23 @@ public class TxHandler {
 	// 1
 	boolean allOutputsExist(Transaction tx) {
 		for (Transaction.Input txIn : tx.getInputs()) {
-			UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
-			if (!utxoPool.contains(utxo))
+			if (!utxoPool.contains(txIn.prevTxHash, txIn.outputIndex))
 				return false;
 		}
 		return true;
 	}
 
 	// 2
-	boolean validSignatures(Transaction tx) {
+	boolean validSignatures(Transaction tx, Set<Transaction> verified) {
+		if (verified.contains(tx)) {
+			return true;
+		}
+		// outputs are serialized once for all inputs, from their current content
+		byte[] rawOutputs = tx.getRawOutputs();
 		for (int i = 0; i < tx.numInputs(); i++) {
 			Transaction.Input txIn = tx.getInput(i);
-			UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
-			Transaction.Output txOut = utxoPool.getTxOutput(utxo);
-			if (!Crypto.verifySignature(txOut.address, tx.getRawDataToSign(i), txIn.signature))
+			Transaction.Output txOut = utxoPool.getTxOutput(txIn.prevTxHash, txIn.outputIndex);
+			if (!SignatureCache.verify(txOut.address, tx, i, rawOutputs))
 				return false;
 		}
 		return true;
@@ -87,6 +122,9 @@ public class TxHandler {
 
 	// 3
 	boolean noDoubleSpending(Transaction tx) {
+		if (tx.numInputs() <= PAIRWISE_DOUBLE_SPEND_CHECK) {
+			return noDoubleSpendingPairwise(tx);
+		}
 		Set<UTXO> utxos = new HashSet<UTXO>();
 		for (Transaction.Input txIn : tx.getInputs()) {
 			UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
@@ -99,6 +137,19 @@ public class TxHandler {
 		return true;
 	}
 
+	// compares inputs in place, cheaper than hashing for few inputs
+	private boolean noDoubleSpendingPairwise(Transaction tx) {
+		for (int i = 1; i < tx.numInputs(); i++) {
+			Transaction.Input txIn = tx.getInput(i);
+			for (int j = 0; j < i; j++) {
+				Transaction.Input other = tx.getInput(j);
+				if (txIn.outputIndex == other.outputIndex && Arrays.equals(txIn.prevTxHash, other.prevTxHash))
+					return false;
+			}
+		}
+		return true;
+	}
+
 	// 4
 	boolean nonNegativeOutputs(Transaction tx) {
 		for (Transaction.Output txOut : tx.getOutputs()) {
@@ -127,8 +178,7 @@ public class TxHandler {
 	protected double inputValues(Transaction tx) {
 		double inputValues = 0;
 		for (Transaction.Input txIn : tx.getInputs()) {
-			UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
-			inputValues += utxoPool.getTxOutput(utxo).value;
+			inputValues += utxoPool.getTxOutput(txIn.prevTxHash, txIn.outputIndex).value;
 		}
 		return inputValues;
 	}
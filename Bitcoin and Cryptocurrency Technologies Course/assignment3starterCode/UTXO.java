@@ -8,6 +8,9 @@ public class UTXO implements Comparable<UTXO> {
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** Cached {@link #hashCode()}, keys are hashed on every pool lookup */
+    private int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
@@ -15,6 +18,7 @@ public class UTXO implements Comparable<UTXO> {
     public UTXO(byte[] txHash, int index) {
         this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        this.hash = hashCode(txHash, index);
     }
 
     /** @return the transaction hash of this UTXO */
@@ -40,15 +44,15 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
-            return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return hash == utxo.hash && matches(utxo.txHash, utxo.index);
+    }
+
+    /**
+     * @return true if this UTXO corresponds to the output with index {@code index} in the
+     *         transaction whose hash is {@code txHash}, without creating a UTXO for it
+     */
+    public boolean matches(byte[] txHash, int index) {
+        return this.index == index && Arrays.equals(this.txHash, txHash);
     }
 
     /**
@@ -56,6 +60,11 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
+        return hash;
+    }
+
+    /** @return the hashCode of the UTXO with {@code txHash} and {@code index} */
+    public static int hashCode(byte[] txHash, int index) {
         int hash = 1;
         hash = hash * 17 + index;
         hash = hash * 31 + Arrays.hashCode(txHash);
@@ -0,0 +1,296 @@
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash array mapped trie from UTXOs to transaction outputs. Updates copy only the
+ * path from the root to the changed entry, so a new version shares all untouched structure with
+ * the version it was derived from.
+ */
+public final class UTXOMap {
+
+    public static final UTXOMap EMPTY = new UTXOMap(null, 0);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final Node root;
+    private final int size;
+
+    private UTXOMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** @return the number of entries in the map */
+    public int size() {
+        return size;
+    }
+
+    /** @return the output mapped to {@code utxo}, or null if there is none */
+    public Transaction.Output get(UTXO utxo) {
+        return get(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * @return the output mapped to the UTXO with {@code txHash} and {@code index}, or null if
+     *         there is none
+     */
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (root == null)
+            return null;
+        return root.get(0, spread(UTXO.hashCode(txHash, index)), txHash, index);
+    }
+
+    /** @return true if {@code utxo} is mapped to an output */
+    public boolean containsKey(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    /** @return a map that also maps {@code utxo} to {@code txOut} */
+    public UTXOMap put(UTXO utxo, Transaction.Output txOut) {
+        int h = hash(utxo);
+        if (root == null)
+            return new UTXOMap(BitmapNode.EMPTY.put(0, h, utxo, txOut), 1);
+        Node newRoot = root.put(0, h, utxo, txOut);
+        if (newRoot == root)
+            return this;
+        return new UTXOMap(newRoot, get(utxo) == null ? size + 1 : size);
+    }
+
+    /** @return a map without the mapping for {@code utxo} */
+    public UTXOMap remove(UTXO utxo) {
+        if (root == null)
+            return this;
+        Node newRoot = root.remove(0, hash(utxo), utxo);
+        if (newRoot == root)
+            return this;
+        if (newRoot == null)
+            return EMPTY;
+        return new UTXOMap(newRoot, size - 1);
+    }
+
+    /** Calls {@code action} for every entry in the map */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        if (root != null)
+            root.forEach(action);
+    }
+
+    private static int hash(UTXO utxo) {
+        return spread(utxo.hashCode());
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int index(int shift, int hash) {
+        return (hash >>> shift) & MASK;
+    }
+
+    private static Node merge(int shift, int h1, UTXO k1, Transaction.Output v1, int h2, UTXO k2,
+            Transaction.Output v2) {
+        if (shift >= Integer.SIZE)
+            return new CollisionNode(h1, new UTXO[] { k1, k2 }, new Transaction.Output[] { v1, v2 });
+        int i1 = index(shift, h1);
+        int i2 = index(shift, h2);
+        if (i1 == i2)
+            return new BitmapNode(1 << i1, new Object[] { null, merge(shift + BITS, h1, k1, v1, h2, k2, v2) });
+        if (i1 < i2)
+            return new BitmapNode((1 << i1) | (1 << i2), new Object[] { k1, v1, k2, v2 });
+        return new BitmapNode((1 << i1) | (1 << i2), new Object[] { k2, v2, k1, v1 });
+    }
+
+    private abstract static class Node {
+        abstract Transaction.Output get(int shift, int hash, byte[] txHash, int index);
+
+        abstract Node put(int shift, int hash, UTXO key, Transaction.Output value);
+
+        /** @return the node without {@code key}, or null if the node became empty */
+        abstract Node remove(int shift, int hash, UTXO key);
+
+        abstract void forEach(BiConsumer<UTXO, Transaction.Output> action);
+    }
+
+    /**
+     * Interior node holding up to 32 slots. Each present slot takes two array cells: a key and its
+     * output, or null and a child node.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int position(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Transaction.Output get(int shift, int hash, byte[] txHash, int index) {
+            int bit = 1 << index(shift, hash);
+            if ((bitmap & bit) == 0)
+                return null;
+            int pos = position(bit);
+            Object k = array[2 * pos];
+            Object v = array[2 * pos + 1];
+            if (k == null)
+                return ((Node) v).get(shift + BITS, hash, txHash, index);
+            if (((UTXO) k).matches(txHash, index))
+                return (Transaction.Output) v;
+            return null;
+        }
+
+        Node put(int shift, int hash, UTXO key, Transaction.Output value) {
+            int bit = 1 << index(shift, hash);
+            int pos = position(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, 2 * pos);
+                newArray[2 * pos] = key;
+                newArray[2 * pos + 1] = value;
+                System.arraycopy(array, 2 * pos, newArray, 2 * pos + 2, array.length - 2 * pos);
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            Object k = array[2 * pos];
+            Object v = array[2 * pos + 1];
+            if (k == null) {
+                Node child = (Node) v;
+                Node newChild = child.put(shift + BITS, hash, key, value);
+                if (newChild == child)
+                    return this;
+                return replace(pos, null, newChild);
+            }
+            if (key.equals(k)) {
+                if (v == value)
+                    return this;
+                return replace(pos, k, value);
+            }
+            UTXO otherKey = (UTXO) k;
+            Node child = merge(shift + BITS, hash(otherKey), otherKey, (Transaction.Output) v, hash, key, value);
+            return replace(pos, null, child);
+        }
+
+        Node remove(int shift, int hash, UTXO key) {
+            int bit = 1 << index(shift, hash);
+            if ((bitmap & bit) == 0)
+                return this;
+            int pos = position(bit);
+            Object k = array[2 * pos];
+            Object v = array[2 * pos + 1];
+            if (k == null) {
+                Node child = (Node) v;
+                Node newChild = child.remove(shift + BITS, hash, key);
+                if (newChild == child)
+                    return this;
+                if (newChild == null)
+                    return without(bit, pos);
+                // pull a lone entry back up so removals keep the trie shallow
+                if (newChild instanceof BitmapNode) {
+                    BitmapNode node = (BitmapNode) newChild;
+                    if (node.array.length == 2 && node.array[0] != null)
+                        return replace(pos, node.array[0], node.array[1]);
+                }
+                return replace(pos, null, newChild);
+            }
+            if (key.equals(k))
+                return without(bit, pos);
+            return this;
+        }
+
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null)
+                    ((Node) array[i + 1]).forEach(action);
+                else
+                    action.accept((UTXO) array[i], (Transaction.Output) array[i + 1]);
+            }
+        }
+
+        private Node replace(int pos, Object key, Object value) {
+            Object[] newArray = array.clone();
+            newArray[2 * pos] = key;
+            newArray[2 * pos + 1] = value;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private Node without(int bit, int pos) {
+            if (bitmap == bit)
+                return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2 * pos);
+            System.arraycopy(array, 2 * pos + 2, newArray, 2 * pos, newArray.length - 2 * pos);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+    }
+
+    /** Leaf node for keys whose hashes are identical in all 32 bits */
+    private static final class CollisionNode extends Node {
+        final int hash;
+        final UTXO[] keys;
+        final Transaction.Output[] values;
+
+        CollisionNode(int hash, UTXO[] keys, Transaction.Output[] values) {
+            this.hash = hash;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        private int find(UTXO key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key))
+                    return i;
+            }
+            return -1;
+        }
+
+        Transaction.Output get(int shift, int hash, byte[] txHash, int index) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].matches(txHash, index))
+                    return values[i];
+            }
+            return null;
+        }
+
+        Node put(int shift, int hash, UTXO key, Transaction.Output value) {
+            int i = find(key);
+            if (i >= 0) {
+                if (values[i] == value)
+                    return this;
+                Transaction.Output[] newValues = values.clone();
+                newValues[i] = value;
+                return new CollisionNode(hash, keys, newValues);
+            }
+            int n = keys.length;
+            UTXO[] newKeys = Arrays.copyOf(keys, n + 1);
+            Transaction.Output[] newValues = Arrays.copyOf(values, n + 1);
+            newKeys[n] = key;
+            newValues[n] = value;
+            return new CollisionNode(hash, newKeys, newValues);
+        }
+
+        Node remove(int shift, int hash, UTXO key) {
+            int i = find(key);
+            if (i < 0)
+                return this;
+            int n = keys.length;
+            if (n == 1)
+                return null;
+            UTXO[] newKeys = new UTXO[n - 1];
+            Transaction.Output[] newValues = new Transaction.Output[n - 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(keys, i + 1, newKeys, i, n - i - 1);
+            System.arraycopy(values, 0, newValues, 0, i);
+            System.arraycopy(values, i + 1, newValues, i, n - i - 1);
+            return new CollisionNode(hash, newKeys, newValues);
+        }
+
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < keys.length; i++)
+                action.accept(keys[i], values[i]);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.function.BiConsumer;
+
+/**
+ * Store layered over a base {@link UTXOPool}: reads fall through to the base and changes are
+ * recorded in the overlay only, so a block can be validated and applied against its parent's UTXO
+ * set without copying it. The base must not change while the overlay is in use.
+ */
+public class UTXOOverlay implements UTXOStore {
+
+    // marks a UTXO of the base that the overlay removed
+    private static final Transaction.Output REMOVED = new Transaction().new Output(0, null);
+
+    private final UTXOPool base;
+    /** changes made on top of the base, REMOVED for removals */
+    private UTXOMap changes;
+    private int size;
+
+    public UTXOOverlay(UTXOPool base) {
+        this(base, UTXOMap.EMPTY, base.size());
+    }
+
+    private UTXOOverlay(UTXOPool base, UTXOMap changes, int size) {
+        this.base = base;
+        this.changes = changes;
+        this.size = size;
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (changes.size() > 0) {
+            Transaction.Output txOut = changes.get(txHash, index);
+            if (txOut != null)
+                return txOut == REMOVED ? null : txOut;
+        }
+        return base.getTxOutput(txHash, index);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (get(utxo.getTxHash(), utxo.getIndex()) == null)
+            size++;
+        changes = changes.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        if (get(utxo.getTxHash(), utxo.getIndex()) == null)
+            return;
+        size--;
+        // outputs created in the overlay leave no trace
+        if (base.contains(utxo))
+            changes = changes.put(utxo, REMOVED);
+        else
+            changes = changes.remove(utxo);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (UTXO utxo : base.getAllUTXO()) {
+            if (changes.get(utxo) == null)
+                action.accept(utxo, base.getTxOutput(utxo));
+        }
+        changes.forEach((utxo, txOut) -> {
+            if (txOut != REMOVED)
+                action.accept(utxo, txOut);
+        });
+    }
+
+    /** @return an overlay over the same base with a copy of the changes, in constant time */
+    public UTXOStore copy() {
+        return new UTXOOverlay(base, changes, size);
+    }
+
+    /** @return the number of UTXOs added or removed on top of the base */
+    public int changeCount() {
+        return changes.size();
+    }
+}
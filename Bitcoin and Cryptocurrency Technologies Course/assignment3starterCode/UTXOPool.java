@@ -1,22 +1,29 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.function.BiConsumer;
 
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
 
-    /** Creates a new empty UTXOPool */
+    /** Creates a new empty UTXOPool on the heap */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new PersistentUTXOStore();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool backed by {@code store} */
+    public UTXOPool(UTXOStore store) {
+        H = store;
+    }
+
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, using the same kind of store. Heap
+     * pools are copied in constant time.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -34,21 +41,46 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        return H.get(ut.getTxHash(), ut.getIndex());
+    }
+
+    /**
+     * @return the transaction output of the UTXO with {@code txHash} and {@code index}, or null if
+     *         it is not in the pool. Unlike {@link #getTxOutput(UTXO)} this needs no UTXO key.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return H.get(txHash, index);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.get(utxo.getTxHash(), utxo.getIndex()) != null;
+    }
+
+    /** @return true if the UTXO with {@code txHash} and {@code index} is in the pool */
+    public boolean contains(byte[] txHash, int index) {
+        return H.get(txHash, index) != null;
+    }
+
+    /** Marks the pool as the state after block {@code blockHash}, see {@link UTXOStore#commit} */
+    public void commit(byte[] blockHash) {
+        H.commit(blockHash);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /** Calls {@code action} for every UTXO in the pool and its transaction output */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        H.forEach(action);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
 }
@@ -0,0 +1,33 @@
+import java.util.function.BiConsumer;
+
+/** Backing storage of a {@link UTXOPool}, mapping UTXOs to transaction outputs */
+public interface UTXOStore {
+
+    /**
+     * @return the output of the UTXO with {@code txHash} and {@code index}, or null if it is not
+     *         in the store
+     */
+    Transaction.Output get(byte[] txHash, int index);
+
+    /** Maps {@code utxo} to {@code txOut} */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the mapping for {@code utxo}, if any */
+    void remove(UTXO utxo);
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** Calls {@code action} for every entry in the store */
+    void forEach(BiConsumer<UTXO, Transaction.Output> action);
+
+    /** @return a store with the same entries that is not affected by later changes to this one */
+    UTXOStore copy();
+
+    /**
+     * Marks the current entries as the UTXO set after the block with hash {@code blockHash}.
+     * Durable stores persist the changes made since the last commit.
+     */
+    default void commit(byte[] blockHash) {
+    }
+}